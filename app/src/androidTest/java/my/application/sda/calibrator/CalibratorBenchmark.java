@@ -0,0 +1,89 @@
+package my.application.sda.calibrator;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+// Calibration of a 320x192 depth field with 100, 1k and 10k points and 30% of outliers, with the
+// full-sample and the minimal-sample RANSAC. After the first calls the calibration doesn't allocate,
+// so the times don't include the garbage collection.
+@RunWith(AndroidJUnit4.class)
+public class CalibratorBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void fullSample100() {
+        calibrate(100, false);
+    }
+
+    @Test
+    public void fullSample1000() {
+        calibrate(1000, false);
+    }
+
+    @Test
+    public void fullSample10000() {
+        calibrate(10000, false);
+    }
+
+    @Test
+    public void minimalSample100() {
+        calibrate(100, true);
+    }
+
+    @Test
+    public void minimalSample1000() {
+        calibrate(1000, true);
+    }
+
+    @Test
+    public void minimalSample10000() {
+        calibrate(10000, true);
+    }
+
+    private void calibrate(int numSamples, boolean isMinimalSample) {
+        DepthField depthField = new DepthField(320, 192, WIDTH, HEIGHT);
+        float[] values = depthField.getValues();
+        Random random = new Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0.2f + random.nextFloat();
+        }
+
+        // Points following a scale of 1.7 and a shift of 0.1 with a relative noise of 2%
+        CalibrationSamples samples = new CalibrationSamples(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            int x = random.nextInt(WIDTH);
+            int y = random.nextInt(HEIGHT);
+            float disparity;
+            if (random.nextFloat() < 0.3f) {
+                disparity = 0.2f + 3f * random.nextFloat();
+            } else {
+                disparity = (float) ((1.7 * depthField.sample(x, y) + 0.1) * (1 + 0.02 * random.nextGaussian()));
+            }
+            samples.add(x, y, disparity);
+        }
+
+        // The parameters of the app, on a single worker
+        Calibrator calibrator = new Calibrator(WIDTH, HEIGHT, 200, 0.08, 0.3);
+        calibrator.setParallelism(1, 7);
+        if (isMinimalSample) {
+            calibrator.setMinimalSample(0.1, 0.99, true);
+        }
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            calibrator.calibrate(depthField, samples);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package my.application.sda.calibrator;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+// Normalization of the depth output: the copy in a new FloatBuffer with two passes that was used
+// before against the single pass on the array of a DepthField
+@RunWith(AndroidJUnit4.class)
+public class DepthFieldBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 384;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    // Output of the model, in a direct buffer like the output tensor of the interpreter
+    private final FloatBuffer output;
+
+    public DepthFieldBenchmark() {
+        output = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        Random random = new Random(1);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            output.put(i, 2f + 30f * random.nextFloat());
+        }
+    }
+
+    @Test
+    public void normalizeInNewBuffer() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            FloatBuffer normalized = FloatBuffer.allocate(output.capacity());
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            output.rewind();
+            while (output.hasRemaining()) {
+                float value = output.get();
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            output.rewind();
+            while (output.hasRemaining()) {
+                normalized.put((output.get() - min) / (max - min));
+            }
+            output.rewind();
+        }
+    }
+
+    @Test
+    public void setNormalized() {
+        DepthField depthField = new DepthField(WIDTH, HEIGHT, WIDTH, HEIGHT);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            depthField.setNormalized(output);
+        }
+    }
+}
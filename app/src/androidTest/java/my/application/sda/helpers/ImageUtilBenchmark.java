@@ -0,0 +1,87 @@
+package my.application.sda.helpers;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Conversion of a camera frame to an ARGB bitmap: the JPEG round trip that was used before against
+// the conversion of the planes in place
+@RunWith(AndroidJUnit4.class)
+public class ImageUtilBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    // Planes of an Image with the layout of the ARCore camera images: the Y plane, then the chroma
+    // with interleaved V and U samples, so U and V have pixel stride 2
+    private final ByteBuffer yPlane;
+    private final ByteBuffer uPlane;
+    private final ByteBuffer vPlane;
+
+    public ImageUtilBenchmark() {
+        int ySize = WIDTH * HEIGHT;
+        byte[] nv21 = new byte[ySize + ySize / 2];
+        new Random(1).nextBytes(nv21);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(nv21.length);
+        buffer.put(nv21);
+        buffer.position(0);
+        buffer.limit(ySize);
+        yPlane = buffer.slice();
+        buffer.limit(nv21.length);
+        buffer.position(ySize);
+        vPlane = buffer.slice();
+        buffer.position(ySize + 1);
+        uPlane = buffer.slice();
+    }
+
+    // Planes copied in a NV21 array, compressed to a JPEG and decoded again
+    @Test
+    public void jpegRoundTrip() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ByteBuffer y = yPlane.duplicate();
+            ByteBuffer vu = vPlane.duplicate();
+            int ySize = y.remaining();
+            byte[] nv21 = new byte[ySize + vu.remaining()];
+            y.get(nv21, 0, ySize);
+            vu.get(nv21, ySize, vu.remaining());
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, WIDTH, HEIGHT, null);
+            yuvImage.compressToJpeg(new Rect(0, 0, WIDTH, HEIGHT), 100, output);
+            byte[] jpeg = output.toByteArray();
+            BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        }
+    }
+
+    // Planes converted in place in an int[] and a Bitmap reused between frames, like FrameContainer
+    @Test
+    public void convertInPlace() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ImageUtil.convertYUV420ToARGB8888(yPlane, uPlane, vPlane, WIDTH, HEIGHT, WIDTH, WIDTH, 2, argb);
+            bitmap.setPixels(argb, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        }
+    }
+}
@@ -17,10 +17,8 @@
 package my.application.sda;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.media.Image;
@@ -29,15 +27,18 @@ import android.opengl.Matrix;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.View;
+import android.widget.CompoundButton;
 import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
 import com.google.ar.core.Config;
 import com.google.ar.core.Frame;
 import com.google.ar.core.PointCloud;
@@ -62,29 +63,20 @@ import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import my.application.sda.calibrator.DepthCalibrator;
+import my.application.sda.calibrator.FeaturePointMap;
 import my.application.sda.calibrator.FrameContainer;
-import my.application.sda.calibrator.Point;
-import my.application.sda.detector.Detector;
-import my.application.sda.detector.DistanceTracker;
-import my.application.sda.detector.PersonDetection;
-import my.application.sda.helpers.ImageUtil;
-import my.application.sda.helpers.ImageUtilsKt;
+import my.application.sda.calibrator.FrameRing;
+import my.application.sda.calibrator.PointCloudSnapshot;
+import my.application.sda.detector.BoxDepthEstimator;
 import my.application.sda.helpers.Logger;
+import my.application.sda.pipeline.AnalysisPipeline;
+import my.application.sda.pipeline.AnalysisResult;
+import my.application.sda.pipeline.AnalysisTask;
+import my.application.sda.pipeline.LiveAnalysisScheduler;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * This is a simple example that shows how to create an augmented reality (AR) application using the
@@ -132,6 +124,8 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
   // Keep track of the last point cloud rendered to avoid updating the VBO if point cloud
   // was not changed.  Do this using the timestamp since we can't compare PointCloud objects.
   private long lastPointCloudTimestamp = 0;
+  // Tracking state of the last frame, to forget the feature points and the depth history when it is lost
+  private boolean wasTracking = false;
 
 
   // Temporary matrix allocated here to reduce number of allocations for each frame.
@@ -160,11 +154,48 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
   // Button to open settings
   private ImageButton settingButton;
 
+  // Live mode: the preview is analyzed continuously and the result is drawn on the overlay
+  private static final float LIVE_TARGET_RATE = 8f;
+  private Switch liveMode;
+  private ImageView liveOverlay;
+  private LiveAnalysisScheduler liveAnalysisScheduler;
+  private String liveStatus = "";
+  private final AnalysisPipeline.Callback liveCallback = new AnalysisPipeline.Callback() {
+    @Override
+    public void onProgress(AnalysisTask task, AnalysisPipeline.Stage stage) {
+    }
+
+    @Override
+    public void onResult(AnalysisTask task, AnalysisResult result) {
+      liveOverlay.setImageBitmap(result.getDetectionBitmap());
+      liveStatus = String.format(" - Live: %.1f fps, %.0f ms, %d dropped",
+              liveAnalysisScheduler.getThroughput(), liveAnalysisScheduler.getLatencyMillis(), liveAnalysisScheduler.getNumDroppedFrames());
+      updateNotification();
+    }
+
+    @Override
+    public void onCancelled(AnalysisTask task) {
+    }
+
+    @Override
+    public void onError(AnalysisTask task, Exception e) {
+      showAnalysisMessage(Color.RED, "Live analysis failed: " + e.getMessage());
+    }
+  };
+
   // Depth calibrating variables
-  DepthCalibrator depthCalibrator;
-  FrameContainer frameContainer = new FrameContainer();
-  Point[] currentPointCloud;
-  boolean isTakingPicture = false;
+  private static final int FRAME_RING_CAPACITY = 5;
+  FrameRing frameRing = new FrameRing(FRAME_RING_CAPACITY);
+  // Last point cloud, updated in place by the GL thread
+  private final PointCloudSnapshot currentPointCloud = new PointCloudSnapshot();
+  volatile int currentNumPoints = 0;
+
+  // Feature points accumulated over the last frames, the visible ones are used for the calibration
+  private static final int FEATURE_MAP_CAPACITY = 4096;
+  private static final float FEATURE_MAP_VOXEL_SIZE = 0.02f;
+  private static final long FEATURE_MAP_MAX_AGE_NANOS = 10_000_000_000L;
+  private final FeaturePointMap featurePointMap = new FeaturePointMap(FEATURE_MAP_CAPACITY, FEATURE_MAP_VOXEL_SIZE, FEATURE_MAP_MAX_AGE_NANOS);
+  volatile boolean isTakingPicture = false;
 
   // Object Detection variables
   private static final String TF_OD_API_MODEL_FILE_0 = "efficientDet0.tflite";
@@ -174,15 +205,36 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
   private static final int TF_OD_API_INPUT_SIZE_2 = 448;
   private static final int TF_OD_API_INPUT_SIZE_4 = 512;
   private static final float TEXT_SIZE_DIP = 10;
-  private static final boolean MAINTAIN_ASPECT = false;
-  private PersonDetection personDetection = new PersonDetection();
-  private android.graphics.Matrix frameToCropTransform;
-  private android.graphics.Matrix cropToFrameTransform;
   private int imageWidth, imageHeight;
-  private Integer sensorOrientation;
 
-  // Tracker
-  private DistanceTracker distanceTracker = new DistanceTracker();
+  // Analysis of the pictures, off the UI thread
+  private AnalysisPipeline analysisPipeline;
+  private final AnalysisPipeline.Callback analysisCallback = new AnalysisPipeline.Callback() {
+    @Override
+    public void onProgress(AnalysisTask task, AnalysisPipeline.Stage stage) {
+      errorText.setTextColor(Color.WHITE);
+      errorText.setTextSize(20);
+      errorText.setText("Analyzing (" + analysisPipeline.getNumPendingTasks() + "): " + stage.name().toLowerCase());
+    }
+
+    @Override
+    public void onResult(AnalysisTask task, AnalysisResult result) {
+      updateImagePaths();
+      dimPrec = imagePaths.length;
+      viewGallery.setImageBitmap(result.getDetectionBitmap());
+      showAnalysisMessage(Color.WHITE, "Picture saved in the gallery");
+    }
+
+    @Override
+    public void onCancelled(AnalysisTask task) {
+      showAnalysisMessage(Color.WHITE, "Analysis cancelled");
+    }
+
+    @Override
+    public void onError(AnalysisTask task, Exception e) {
+      showAnalysisMessage(Color.RED, "Analysis failed: " + e.getMessage());
+    }
+  };
 
   // Logger
   private Logger logger;
@@ -205,63 +257,16 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
 
     settings = getSharedPreferences("settings", 0);
 
-    //object detection code
-    int cropSize = TF_OD_API_INPUT_SIZE_0;
-    try {
-      switch (settings.getInt("efficientDet", 0)){
-        default:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
-          cropSize = TF_OD_API_INPUT_SIZE_0;
-          break;
-        case 0:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
-          cropSize = TF_OD_API_INPUT_SIZE_0;
-          break;
-        case 2:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_2, TF_OD_API_INPUT_SIZE_2);
-          cropSize = TF_OD_API_INPUT_SIZE_2;
-          break;
-        case 4:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_4, TF_OD_API_INPUT_SIZE_4);
-          cropSize = TF_OD_API_INPUT_SIZE_4;
-          break;
-      }
-
-    } catch (IOException e) {
-      e.printStackTrace();
-      logger.addRecordToLog("onCreate: " + e.toString());
-    }
-
     imageWidth = 640;
     imageHeight = 480;
-    sensorOrientation = 0;
-
-    frameToCropTransform =
-            ImageUtil.getTransformationMatrix(
-                    imageWidth, imageHeight,
-                    cropSize, cropSize,
-                    sensorOrientation, MAINTAIN_ASPECT);
 
-    cropToFrameTransform = new android.graphics.Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+    analysisPipeline = new AnalysisPipeline(this.getApplicationContext(), logger, imageWidth, imageHeight);
+    setPersonDetection();
+    liveAnalysisScheduler = new LiveAnalysisScheduler(analysisPipeline, frameRing, imageWidth, imageHeight, LIVE_TARGET_RATE, liveCallback);
 
     // ViewGallery ImageButton
     viewGallery = (ImageButton)findViewById(R.id.viewGallery);
-    imagePaths = this.getApplicationContext().getFilesDir().list();
-    int cont = 0;
-    for (int i = 0; i < imagePaths.length; i++){
-      if (imagePaths[i].contains(".jpg"))
-        cont++;
-    }
-    String [] temp = new String[cont];
-    cont=0;
-    for(int i=0; i < imagePaths.length; i++){
-      if (imagePaths[i].contains(".jpg")) {
-        temp[cont++] = imagePaths[i];
-      }
-    }
-    imagePaths = temp;
-    Arrays.sort(imagePaths);
+    updateImagePaths();
     dimPrec = imagePaths.length;
     if (imagePaths.length > 0) {
       try {
@@ -296,7 +301,7 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
     takePicture = (ImageButton)findViewById(R.id.takePicture);
     takePicture.setOnClickListener(new View.OnClickListener() {
       public void onClick(View v) {
-        if (currentPointCloud == null || currentPointCloud.length == 0){
+        if (currentNumPoints == 0){
           errorText.setTextColor(Color.RED);
           errorText.setTextSize(20);
           errorText.setText("Not enough feature points: move the device around");
@@ -309,7 +314,6 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
           }, 5000);
           return;
         }else {
-          isTakingPicture = true;
           onTakePicture();
         }
       }
@@ -328,6 +332,19 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
     textNotification = (TextView)findViewById(R.id.textNotification);
     errorText = (TextView)findViewById(R.id.errorText);
 
+    // Live mode
+    liveOverlay = (ImageView)findViewById(R.id.liveOverlay);
+    liveMode = (Switch)findViewById(R.id.liveMode);
+    liveMode.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        if (isChecked) {
+          startLiveMode();
+        } else {
+          stopLiveMode();
+        }
+      }
+    });
+
     displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
 
     // Set up renderer.
@@ -348,6 +365,8 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
       session = null;
     }
 
+    liveAnalysisScheduler.stop();
+    analysisPipeline.close();
 
     super.onDestroy();
   }
@@ -421,21 +440,7 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
       return;
     }
 
-    imagePaths = this.getApplicationContext().getFilesDir().list();
-    int cont = 0;
-    for (int i = 0; i < imagePaths.length; i++){
-      if (imagePaths[i].contains(".jpg"))
-        cont++;
-    }
-    String [] temp = new String[cont];
-    cont=0;
-    for(int i=0; i < imagePaths.length; i++){
-      if (imagePaths[i].contains(".jpg")) {
-        temp[cont++] = imagePaths[i];
-      }
-    }
-    imagePaths = temp;
-    Arrays.sort(imagePaths);
+    updateImagePaths();
     if (imagePaths.length > 0 && dimPrec != imagePaths.length) {
       dimPrec = imagePaths.length;
       try {
@@ -446,48 +451,22 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
     }
 
     // Object Detection resume
-    int cropSize = TF_OD_API_INPUT_SIZE_0;
-    try {
-      switch (settings.getInt("efficientDet", 0)){
-        default:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
-          cropSize = TF_OD_API_INPUT_SIZE_0;
-          break;
-        case 0:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
-          cropSize = TF_OD_API_INPUT_SIZE_0;
-          break;
-        case 2:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_2, TF_OD_API_INPUT_SIZE_2);
-          cropSize = TF_OD_API_INPUT_SIZE_2;
-          break;
-        case 4:
-          personDetection.init(this.getApplicationContext(), TF_OD_API_MODEL_FILE_4, TF_OD_API_INPUT_SIZE_4);
-          cropSize = TF_OD_API_INPUT_SIZE_4;
-          break;
-      }
-
-    } catch (IOException e) {
-      e.printStackTrace();
-      logger.addRecordToLog("onCreate: " + e.toString());
-    }
-
-    frameToCropTransform =
-            ImageUtil.getTransformationMatrix(
-                    imageWidth, imageHeight,
-                    cropSize, cropSize,
-                    sensorOrientation, MAINTAIN_ASPECT);
-
-    cropToFrameTransform = new android.graphics.Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+    setPersonDetection();
+    analysisPipeline.setDetectFirst(settings.getBoolean("detectFirst", false));
+    analysisPipeline.setBoxDepthEstimator(BoxDepthEstimator.createDefault(settings.getInt("boxDepthPercentile", 30) / 100f));
 
     surfaceView.onResume();
     displayRotationHelper.onResume();
+
+    if (liveMode.isChecked()) {
+      startLiveMode();
+    }
   }
 
   @Override
   public void onPause() {
     super.onPause();
+    stopLiveMode();
     if (session != null) {
       // Note that the order matters - GLSurfaceView is paused first so that it does not try
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
@@ -606,26 +585,72 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
     }
     Camera camera = frame.getCamera();
 
-    // Save information about current frame on FrameContainer
-    try {
-      Image imageFrame = frame.acquireCameraImage();
+    // Get projection matrix.
+    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
 
-      Bitmap imageBitmap = ImageUtilsKt.yuvToBitmap(imageFrame);
+    // Get camera matrix.
+    camera.getViewMatrix(viewMatrix, 0);
 
-      float fx_d, fy_d, cx_d, cy_d;
-      float[] projectionMatrix = new float[16];
-      float[] viewMatrix = new float[16];
-      frame.getCamera().getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
-      frame.getCamera().getViewMatrix(viewMatrix, 0);
+    Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
 
-      fx_d = frame.getCamera().getImageIntrinsics().getFocalLength()[0];
-      fy_d = frame.getCamera().getImageIntrinsics().getFocalLength()[1];
-      cx_d = frame.getCamera().getImageIntrinsics().getPrincipalPoint()[0];
-      cy_d = frame.getCamera().getImageIntrinsics().getPrincipalPoint()[1];
+    // Without tracking the world coordinates of the previous frames can't be trusted anymore
+    boolean isTracking = camera.getTrackingState() == TrackingState.TRACKING;
+    if (!isTracking) {
+      featurePointMap.clear();
+      if (wasTracking) {
+        analysisPipeline.resetHistory();
+      }
+    }
+    wasTracking = isTracking;
 
-      frameContainer.fill(imageBitmap, frame.getCamera().getPose(), projectionMatrix, viewMatrix, fx_d, fy_d, cx_d, cy_d);
+    // Update the point cloud only if it was changed.
+    // Use try-with-resources to automatically release the point cloud.
+    try (PointCloud pointCloud = frame.acquirePointCloud()) {
+      if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
+        pointCloudVertexBuffer.set(pointCloud.getPoints());
+        lastPointCloudTimestamp = pointCloud.getTimestamp();
+        currentPointCloud.fill(pointCloud);
+        currentNumPoints = currentPointCloud.getNumPoints();
+        if (isTracking) {
+          featurePointMap.update(currentPointCloud);
+        }
 
-      imageFrame.close();
+        // Update the label only when the point cloud changes
+        runOnUiThread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    updateNotification();
+                  }
+                });
+      }
+    }
+
+    // Save information about current frame in the ring of the last frames: only the raw planes are
+    // copied, the conversion to bitmap is done when the frame is used to take a picture
+    try (Image imageFrame = frame.acquireCameraImage()) {
+      CameraIntrinsics intrinsics = camera.getImageIntrinsics();
+      float[] focalLength = intrinsics.getFocalLength();
+      float[] principalPoint = intrinsics.getPrincipalPoint();
+
+      // The ring never blocks: if every slot is being read the frame is dropped
+      FrameContainer frameContainer = frameRing.acquireWriteSlot();
+      if (frameContainer != null) {
+        // The slot must always be given back, otherwise the writer loses it for good
+        boolean isFilled = false;
+        try {
+          frameContainer.fill(imageFrame, camera.getPose(), projectionMatrix, viewMatrix, focalLength[0], focalLength[1], principalPoint[0], principalPoint[1]);
+          featurePointMap.collectVisible(modelViewProjectionMatrix, frameContainer.getPointCloud());
+          frameContainer.setTrackingState(camera.getTrackingState());
+          isFilled = true;
+        } finally {
+          if (isFilled) {
+            frameRing.publish();
+          } else {
+            frameRing.abort();
+          }
+        }
+      }
     } catch (NotYetAvailableException e) {
       e.printStackTrace();
       //logger.addRecordToLog("onDrawFrame: " + e.toString());
@@ -653,33 +678,9 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
 
     // -- Draw non-occluded virtual objects (planes, point cloud)
 
-    // Get projection matrix.
-    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
-
-    // Get camera matrix and draw.
-    camera.getViewMatrix(viewMatrix, 0);
-
     // Visualize tracked points.
-    // Use try-with-resources to automatically release the point cloud.
-    try (PointCloud pointCloud = frame.acquirePointCloud()) {
-      if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
-        pointCloudVertexBuffer.set(pointCloud.getPoints());
-        lastPointCloudTimestamp = pointCloud.getTimestamp();
-        currentPointCloud = Point.parsePointCloud(pointCloud);
-        frameContainer.setPointCloud(currentPointCloud);
-      }
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
-      pointCloudShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      render.draw(pointCloudMesh, pointCloudShader);
-    }
-
-    runOnUiThread(
-            new Runnable() {
-              @Override
-              public void run() {
-                textNotification.setText("Point Cloud: " + currentPointCloud.length);
-              }
-            });
+    pointCloudShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
+    render.draw(pointCloudMesh, pointCloudShader);
   }
 
   /** Configures the session with feature settings. */
@@ -690,44 +691,79 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
   }
 
   private void onTakePicture(){
-    if(depthCalibrator == null){
-      depthCalibrator = new DepthCalibrator(this.getApplicationContext(), imageWidth, imageHeight);
+    // The best of the last frames is copied and analyzed in background, so the preview keeps running
+    // and more pictures can be queued
+    AnalysisTask task = analysisPipeline.submit(frameRing, analysisCallback);
+    if (task == null) {
+      showAnalysisMessage(Color.RED, "Wait for the analysis of the previous pictures");
     }
+  }
 
-    //long startTime = System.nanoTime();
-
-    depthCalibrator.doInference(frameContainer);
-
-    Bitmap currentFrameBitmap = depthCalibrator.getImageBitmap();
-    Bitmap currentDepthBitmap = depthCalibrator.getDepthBitmap();
-
-    //long pydnetTime = System.nanoTime();
-
-    distanceTracker.setCameraParameters(frameContainer.getFx_d(), frameContainer.getFy_d(), frameContainer.getCx_d(), frameContainer.getCy_d());
-    distanceTracker.setDepthMap(depthCalibrator.getDepthMap(), (float)depthCalibrator.getScaleFactor(), (float)depthCalibrator.getShiftFactor());
-    List<Detector.Recognition> personRecognitions = personDetection.getRecognitionsTrackedFrom(currentFrameBitmap, cropToFrameTransform);
-    Bitmap detectionBitmap = distanceTracker.getTrackedBitmap(currentFrameBitmap, personRecognitions);
+  // Load the object detection model chosen in the settings
+  private void setPersonDetection(){
+    switch (settings.getInt("efficientDet", 0)){
+      default:
+        analysisPipeline.setPersonDetection(TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
+        break;
+      case 0:
+        analysisPipeline.setPersonDetection(TF_OD_API_MODEL_FILE_0, TF_OD_API_INPUT_SIZE_0);
+        break;
+      case 2:
+        analysisPipeline.setPersonDetection(TF_OD_API_MODEL_FILE_2, TF_OD_API_INPUT_SIZE_2);
+        break;
+      case 4:
+        analysisPipeline.setPersonDetection(TF_OD_API_MODEL_FILE_4, TF_OD_API_INPUT_SIZE_4);
+        break;
+    }
+  }
 
-    //long detectionTime = System.nanoTime();
+  // Images saved in the internal storage, sorted by name (and so by date)
+  private void updateImagePaths(){
+    imagePaths = this.getApplicationContext().getFilesDir().list();
+    int cont = 0;
+    for (int i = 0; i < imagePaths.length; i++){
+      if (imagePaths[i].contains(".jpg"))
+        cont++;
+    }
+    String [] temp = new String[cont];
+    cont=0;
+    for(int i=0; i < imagePaths.length; i++){
+      if (imagePaths[i].contains(".jpg")) {
+        temp[cont++] = imagePaths[i];
+      }
+    }
+    imagePaths = temp;
+    Arrays.sort(imagePaths);
+  }
 
-    String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
-    String imageFileName = "sda-" + timeStamp + "-0image.jpg";
-    String depthFileName = "sda-" + timeStamp + "-1depth.jpg";
-    String detectionFileName = "sda-" + timeStamp + "-2detection.jpg";
-    String JSONFileName = "sda-" + timeStamp + ".json";
-    ImageUtil.createImageFromBitmap(currentDepthBitmap, depthFileName, surfaceView.getContext());
-    ImageUtil.createImageFromBitmap(detectionBitmap, detectionFileName, surfaceView.getContext());
-    ImageUtil.createImageFromBitmap(frameContainer.getImage(), imageFileName, surfaceView.getContext());
+  private void startLiveMode(){
+    liveOverlay.setImageBitmap(null);
+    liveOverlay.setVisibility(View.VISIBLE);
+    liveAnalysisScheduler.start();
+  }
 
-    writeJsonFile(distanceTracker, depthFileName, imageFileName, JSONFileName, personRecognitions, (float) depthCalibrator.getScaleFactor(), (float) depthCalibrator.getShiftFactor(), frameContainer.getFx_d(), frameContainer.getFy_d(), frameContainer.getCx_d(), frameContainer.getCy_d());
+  private void stopLiveMode(){
+    liveAnalysisScheduler.stop();
+    liveOverlay.setVisibility(View.GONE);
+    liveStatus = "";
+    updateNotification();
+  }
 
-    //System.out.println("pydnetTime = " + (pydnetTime-startTime)/1000000);
-    //System.out.println("detectionTime = " + (detectionTime-pydnetTime)/1000000);
+  private void updateNotification(){
+    textNotification.setText("Point Cloud: " + currentNumPoints + liveStatus);
+  }
 
-    if(galleryIntent == null) {
-      galleryIntent = new Intent(surfaceView.getContext(), ResultViewerActivity.class);
-    }
-    startActivityForResult(galleryIntent, 0);
+  private void showAnalysisMessage(int color, String message){
+    errorText.setTextColor(color);
+    errorText.setTextSize(20);
+    errorText.setText(message);
+    new Handler().postDelayed(new Runnable(){
+      @Override
+      public void run()
+      {
+        errorText.setText("");
+      }
+    }, 3000);
   }
 
   private void onViewGallery(){
@@ -743,43 +779,4 @@ public class MainActivity extends Activity implements SampleRender.Renderer {
     }
     startActivityForResult(settingIntent, 0);
   }
-
-  private void writeJsonFile(DistanceTracker distanceTracker, String depthFileName, String imageFileName, String filename, List<Detector.Recognition> mappedRecognitions, float scale_factor, float shift_factor, float fx_d, float fy_d, float cx_d, float cy_d) {
-    JSONObject sampleObject = new JSONObject();
-    JSONObject sampleObject1 = new JSONObject();
-    try {
-      sampleObject.put("fileDepth", depthFileName);
-      sampleObject.put("imageFileName", imageFileName);
-      sampleObject.put("scale_factor", scale_factor);
-      sampleObject.put("shift_factor", shift_factor);
-      sampleObject.put("fx_d", fx_d);
-      sampleObject.put("fy_d", fy_d);
-      sampleObject.put("cx_d", cx_d);
-      sampleObject.put("cy_d", cy_d);
-
-      List<Map> finalMap = new ArrayList<>();
-      List<String> colored_shapes = distanceTracker.getColored_shapes();
-      int cont_pers = 0;
-      for (Detector.Recognition r : mappedRecognitions){
-        Map<String, String> recognitions = new HashMap<>();
-        recognitions.put("rectf_bottom", r.getLocation().bottom + "");
-        recognitions.put("rectf_top", r.getLocation().top + "");
-        recognitions.put("rectf_left", r.getLocation().left + "");
-        recognitions.put("rectf_right", r.getLocation().right + "");
-        recognitions.put("color", colored_shapes.get(cont_pers++));
-        finalMap.add(recognitions);
-      }
-      sampleObject.put("detections", new ObjectMapper().writeValueAsString(finalMap));
-
-      FileOutputStream fos = this.getApplicationContext().openFileOutput(filename, Context.MODE_PRIVATE);
-      String finalMessage = sampleObject.toString();
-      fos.write(finalMessage.getBytes());
-      fos.flush();
-      fos.close();
-    } catch (JSONException | FileNotFoundException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-  }
 }
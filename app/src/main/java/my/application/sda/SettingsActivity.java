@@ -1,12 +1,27 @@
 package my.application.sda;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.view.View;
 import android.view.Window;
+import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.RadioButton;
+import android.widget.SeekBar;
+import android.widget.Switch;
+import android.widget.TextView;
+
+import java.lang.ref.WeakReference;
+
+import my.application.sda.helpers.Logger;
+import my.application.sda.model.ModelRegistry;
+import my.application.sda.pipeline.AnalysisPipeline;
+import my.application.sda.pipeline.DepthVariantBenchmark;
 
 public class SettingsActivity extends Activity {
 
@@ -15,6 +30,17 @@ public class SettingsActivity extends Activity {
     RadioButton det2;
     RadioButton det4;
 
+    //Detect-first mode
+    Switch detectFirst;
+
+    //Percentile of the distances in a box, from 10% to 90%
+    SeekBar boxDepthPercentile;
+    TextView boxDepthPercentileLabel;
+
+    //Comparison of the depth models
+    Button benchmarkDepth;
+    TextView benchmarkResult;
+
     //Shared preferences
     SharedPreferences settings;
 
@@ -60,7 +86,96 @@ public class SettingsActivity extends Activity {
             }
         });
 
+        detectFirst = (Switch) findViewById(R.id.detectFirst);
+        detectFirst.setChecked(settings.getBoolean("detectFirst", false));
+        detectFirst.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor editor = settings.edit();
+                editor.putBoolean("detectFirst", isChecked);
+                editor.commit();
+            }
+        });
+
+        boxDepthPercentile = (SeekBar) findViewById(R.id.boxDepthPercentile);
+        boxDepthPercentileLabel = (TextView) findViewById(R.id.boxDepthPercentileLabel);
+        int percentile = settings.getInt("boxDepthPercentile", 30);
+        boxDepthPercentile.setMax(80);
+        boxDepthPercentile.setProgress(percentile - 10);
+        showBoxDepthPercentile(percentile);
+        boxDepthPercentile.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                showBoxDepthPercentile(progress + 10);
+            }
+
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                SharedPreferences.Editor editor = settings.edit();
+                editor.putInt("boxDepthPercentile", seekBar.getProgress() + 10);
+                editor.commit();
+            }
+        });
 
+        benchmarkDepth = (Button) findViewById(R.id.benchmarkDepth);
+        benchmarkResult = (TextView) findViewById(R.id.benchmarkResult);
+        benchmarkDepth.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                benchmarkDepth.setEnabled(false);
+                benchmarkResult.setText("Running every depth model on the saved captures...");
+                // On the thread of the depth model of the registry, that the benchmark uses as reference
+                ModelRegistry.getInstance(SettingsActivity.this).getDepthExecutor().execute(new BenchmarkTask(SettingsActivity.this));
+            }
+        });
+
+
+    }
+
+    private void showBoxDepthPercentile(int percentile) {
+        boxDepthPercentileLabel.setText("Distance of a person: percentile " + percentile + "% of the depth in the box");
+    }
+
+    private void showBenchmarkResult(String result) {
+        benchmarkResult.setText(result);
+        benchmarkDepth.setEnabled(true);
+    }
+
+    // Keeps only the application context: the activity can be destroyed while the benchmark runs, in
+    // that case the result is only logged
+    private static class BenchmarkTask implements Runnable {
+        private final Context context;
+        private final WeakReference<SettingsActivity> activity;
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        BenchmarkTask(SettingsActivity activity) {
+            this.context = activity.getApplicationContext();
+            this.activity = new WeakReference<>(activity);
+        }
+
+        @Override
+        public void run() {
+            String result;
+            try {
+                // Same CPU budget of the depth model in the pipeline
+                DepthVariantBenchmark benchmark = new DepthVariantBenchmark(context, AnalysisPipeline.defaultDepthThreads());
+                result = DepthVariantBenchmark.format(benchmark.run());
+            } catch (Exception e) {
+                e.printStackTrace();
+                result = "Comparison failed: " + e.toString();
+            }
+            new Logger(context).addRecordToLog("Depth models: " + result);
+
+            final String message = result;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    SettingsActivity settingsActivity = activity.get();
+                    if (settingsActivity != null && !settingsActivity.isDestroyed()) {
+                        settingsActivity.showBenchmarkResult(message);
+                    }
+                }
+            });
+        }
     }
 }
 
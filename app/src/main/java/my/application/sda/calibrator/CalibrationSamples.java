@@ -0,0 +1,66 @@
+package my.application.sda.calibrator;
+
+import java.util.Arrays;
+
+// Feature points used to calibrate the depth: position in the camera image and disparity measured by
+// ARCore (1/distance from the camera, in 1/meters). They are saved with the captures, so that the
+// calibration can be repeated offline with a different depth model.
+public class CalibrationSamples {
+
+    private int[] x;
+    private int[] y;
+    private float[] disparity;
+    private int numSamples = 0;
+
+    public CalibrationSamples(int capacity){
+        x = new int[capacity];
+        y = new int[capacity];
+        disparity = new float[capacity];
+    }
+
+    public void clear() {
+        numSamples = 0;
+    }
+
+    // Copy the samples of other, the arrays grow if needed
+    public void copyFrom(CalibrationSamples other) {
+        if (x.length < other.numSamples) {
+            x = new int[other.numSamples];
+            y = new int[other.numSamples];
+            disparity = new float[other.numSamples];
+        }
+        System.arraycopy(other.x, 0, x, 0, other.numSamples);
+        System.arraycopy(other.y, 0, y, 0, other.numSamples);
+        System.arraycopy(other.disparity, 0, disparity, 0, other.numSamples);
+        numSamples = other.numSamples;
+    }
+
+    public void add(int screenX, int screenY, float measuredDisparity) {
+        if (numSamples == x.length) {
+            int capacity = Math.max(16, numSamples * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            disparity = Arrays.copyOf(disparity, capacity);
+        }
+        x[numSamples] = screenX;
+        y[numSamples] = screenY;
+        disparity[numSamples] = measuredDisparity;
+        numSamples++;
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    public int[] getX() {
+        return x;
+    }
+
+    public int[] getY() {
+        return y;
+    }
+
+    public float[] getDisparity() {
+        return disparity;
+    }
+}
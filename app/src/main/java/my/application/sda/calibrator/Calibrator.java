@@ -1,32 +1,23 @@
 package my.application.sda.calibrator;
 
-import android.graphics.Point;
-import android.opengl.Matrix;
+import android.util.Log;
 
-import com.google.ar.core.PointCloud;
 import com.google.ar.core.Pose;
 
-import java.nio.FloatBuffer;
-import java.util.Arrays;
-import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import my.application.sda.helpers.CoordsUtils;
 
-class RansacIntelObject{
-    public double groundTruth;
-    public double prediction;
-
-    public RansacIntelObject(double groundTruth, double prediction){
-        this.groundTruth = groundTruth;
-        this.prediction = prediction;
-    }
-}
-
-
 public class Calibrator {
 
+    private static final String TAG = "Calibrator";
+
     private double scaleFactor = 1.;
     private double shiftFactor = 0.;
 
@@ -35,25 +26,102 @@ public class Calibrator {
     private float[] viewMatrix;
     private int viewWidth;
     private int viewHeight;
-    private int depthWidth;
-    private double scaleX;
-    private double scaleY;
+    // Intrinsics of the camera image, used instead of the projection matrix if set
+    private boolean hasIntrinsics = false;
+    private float fx;
+    private float fy;
+    private float cx;
+    private float cy;
+    // Pixels and indices of the visible feature points
+    private int[] projectedX = new int[0];
+    private int[] projectedY = new int[0];
+    private int[] projectedIndices = new int[0];
+    // Visible feature points, returned by collectSamples()
+    private final CalibrationSamples samples = new CalibrationSamples(0);
 
     //Ransac Intel variables
     private int numberOfIterations;
     private double normalizedThreshold;
     private double percentagePossibleInlier;
-    private Random rnd = new Random();
 
-    public Calibrator(int viewWidth, int viewHeight, int depthWidth, int depthHeight, int numberOfIterations, double normalizedThreshold, double percentagePossibleInlier) {
+    // Minimal-sample mode: every hypothesis is fitted on 2 points, the inliers are the points with a relative
+    // error under inlierThreshold, and the iterations stop when the best inlier ratio gives the confidence
+    // that an all-inlier sample was drawn. The best model is fitted again on its inliers.
+    private static final int MAX_LOCAL_OPTIMIZATION_STEPS = 4;
+    private boolean isMinimalSample = false;
+    private double inlierThreshold;
+    private double confidence;
+    private boolean isLocalOptimization;
+    // Model tested before the random ones by the next calibrate(), in the minimal-sample mode
+    private boolean hasInitialModel = false;
+    private double initialScaleFactor;
+    private double initialShiftFactor;
+
+    // The iterations are split between the workers, each with its own generator split from the master one:
+    // for the same seed and number of workers the result is the same, whatever the threads that run them.
+    // With few points the workers run one after the other on the calling thread.
+    private static final int MIN_POINTS_FOR_PARALLEL = 500;
+    private SplittableRandom random = new SplittableRandom();
+    private final List<RansacWorker> workers = new ArrayList<>();
+
+    // Measured and predicted disparity of the points, reused between the calls and read by the workers
+    private double[] groundTruths = new double[0];
+    private double[] predictions = new double[0];
+    private int numValidPoint = 0;
+    // Consensus set of the best model, in the buffer of its worker
+    private int[] bestConsensusSet = new int[0];
+    private int numBestConsensusSet = 0;
+
+    public Calibrator(int viewWidth, int viewHeight, int numberOfIterations, double normalizedThreshold, double percentagePossibleInlier) {
         this.viewWidth = viewWidth;
         this.viewHeight = viewHeight;
-        this.depthWidth = depthWidth;
-        this.scaleX = (double) depthWidth / (double) viewWidth;
-        this.scaleY = (double) depthHeight / (double) viewHeight;
         this.numberOfIterations = numberOfIterations;
         this.normalizedThreshold = normalizedThreshold;
         this.percentagePossibleInlier = percentagePossibleInlier;
+        workers.add(new RansacWorker());
+    }
+
+    // numWorkers workers of the RANSAC, seed of their generators to repeat the same results
+    public void setParallelism(int numWorkers, long seed) {
+        random = new SplittableRandom(seed);
+        workers.clear();
+        for (int w = 0; w < Math.max(1, numWorkers); w++) {
+            workers.add(new RansacWorker());
+        }
+    }
+
+    // Use 2 points for every hypothesis, with the stopping rule for the confidence in [0,1). With
+    // localOptimization every new best model is refined on its inliers (LO-RANSAC).
+    public void setMinimalSample(double inlierThreshold, double confidence, boolean localOptimization) {
+        this.isMinimalSample = true;
+        this.inlierThreshold = inlierThreshold;
+        this.confidence = confidence;
+        this.isLocalOptimization = localOptimization;
+    }
+
+    // Back to the hypotheses fitted on percentagePossibleInlier of the points
+    public void setFullSample() {
+        this.isMinimalSample = false;
+    }
+
+    // Start the next minimal-sample RANSAC from a known model, like the one of the previous frame: if most of
+    // the points agree with it, the stopping rule ends the iterations early
+    public void setInitialModel(double scaleFactor, double shiftFactor) {
+        this.hasInitialModel = true;
+        this.initialScaleFactor = scaleFactor;
+        this.initialShiftFactor = shiftFactor;
+    }
+
+    // Iterations needed to draw at least one sample of 2 inliers with the confidence
+    static int getAdaptiveIterations(double inlierRatio, double confidence) {
+        double allInliers = inlierRatio * inlierRatio;
+        if (allInliers >= 1) {
+            return 1;
+        }
+        if (allInliers <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil(Math.log(1 - confidence) / Math.log(1 - allInliers)));
     }
 
     public double getScaleFactor() {
@@ -70,227 +138,427 @@ public class Calibrator {
         this.viewMatrix = viewMatrix;
     }
 
+    // Project the feature points straight in the camera image of size viewWidth x viewHeight
+    public void setIntrinsics(float fx, float fy, float cx, float cy){
+        this.hasIntrinsics = true;
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
 
-    public void calibrate(FloatBuffer prediction, my.application.sda.calibrator.Point[] pointCloud){
 
-        int numPoints = pointCloud.length;
-        float[] point = new float[4];
-        RansacIntelObject[] ransacIntelObjects = new RansacIntelObject[numPoints];
+    public boolean calibrate(DepthField prediction, PointCloudSnapshot pointCloud){
+        return calibrate(prediction, collectSamples(pointCloud));
+    }
 
-        int numValidPoint = 0;
-        for(int i=0; i<numPoints; i++){
-            point[0] = pointCloud[i].getX();
-            point[1] = pointCloud[i].getY();
-            point[2] = pointCloud[i].getZ();
-            point[3] = pointCloud[i].getConfidence();
+    // Project the feature points on the screen and keep the visible ones, with their measured disparity.
+    // The samples are reused: they are valid until the next call.
+    public CalibrationSamples collectSamples(PointCloudSnapshot pointCloud){
+
+        int numPoints = pointCloud.getNumPoints();
+        float[] pointsX = pointCloud.getX();
+        float[] pointsY = pointCloud.getY();
+        float[] pointsZ = pointCloud.getZ();
+        if(projectedX.length < numPoints){
+            projectedX = new int[numPoints];
+            projectedY = new int[numPoints];
+            projectedIndices = new int[numPoints];
+        }
 
-            // Unproject point to screen
-            Point screenPoint = CoordsUtils.worldToScreen(point, viewWidth, viewHeight, projectionMatrix, viewMatrix);
+        // Project all the points at once, clipping the ones outside screen
+        int numVisible;
+        if(hasIntrinsics){
+            numVisible = CoordsUtils.worldToImage(pointsX, pointsY, pointsZ, numPoints, viewWidth, viewHeight, viewMatrix,
+                    fx, fy, cx, cy, projectedX, projectedY, projectedIndices);
+        } else {
+            numVisible = CoordsUtils.worldToScreen(pointsX, pointsY, pointsZ, numPoints, viewWidth, viewHeight,
+                    projectionMatrix, viewMatrix, projectedX, projectedY, projectedIndices);
+        }
 
-            // Clipping point outside screen
-            if(screenPoint.x >= viewWidth || screenPoint.y >= viewHeight || screenPoint.x < 0 || screenPoint.y < 0) {
-                continue;
-            }
+        samples.clear();
+        float[] cameraPosition = camera.getTranslation();
+        for(int i=0; i<numVisible; i++){
+            int point = projectedIndices[i];
 
             // Distance of the point from the camera
-            double distance = distanceTo(point, camera.getTranslation());
+            double distance = distanceTo(pointsX[point], pointsY[point], pointsZ[point], cameraPosition);
 
-            // Transform screen coordinates relative to the image depth
-            Point coordML = CoordsUtils.getCoordsML(screenPoint, scaleX, scaleY);
+            samples.add(projectedX[i], projectedY[i], (float) (1/distance));     // 1/distance se è disparità
+        }
 
-            // Calculate depth with neural network
-            float predictedDistance = getPredictionFromPoint(prediction, coordML);
+        return samples;
+    }
+
+    // True if a model was found, otherwise the factors of the last calibration are kept
+    public boolean calibrate(DepthField prediction, CalibrationSamples samples){
 
-            ransacIntelObjects[numValidPoint++] = new RansacIntelObject(1/distance, predictedDistance);     // 1/distance se è disparità
+        int numSamples = samples.getNumSamples();
+        int[] samplesX = samples.getX();
+        int[] samplesY = samples.getY();
+        float[] samplesDisparity = samples.getDisparity();
+        if(groundTruths.length < numSamples){
+            groundTruths = new double[numSamples];
+            predictions = new double[numSamples];
+        }
+
+        numValidPoint = 0;
+        for(int i=0; i<numSamples; i++){
+            // Calculate depth with neural network
+            groundTruths[numValidPoint] = samplesDisparity[i];
+            predictions[numValidPoint] = prediction.sample(samplesX[i], samplesY[i]);
+            numValidPoint++;
         }
 
         // Need at least one element
         if(numValidPoint < 1){
-            return;
+            hasInitialModel = false;
+            return false;
         }
 
-        // RANSAC algorithm
-        // Based on the pseudo-code of https://it.wikipedia.org/wiki/RANSAC
-        double bestScaleFactor = Double.NaN;
-        double bestShiftFactor = Double.NaN;
-        Integer[] bestConsensusSet = new Integer[0];
-        int numBestConsensusSet = 0;
+        // Contiguous ranges of iterations, each worker with the next generator of the master one
+        int numWorkers = workers.size();
+        for(int w = 0; w < numWorkers; w++){
+            workers.get(w).prepare(numberOfIterations * w / numWorkers, numberOfIterations * (w + 1) / numWorkers, numWorkers, random.split());
+        }
 
-        // Init
+        if(numWorkers > 1 && numValidPoint >= MIN_POINTS_FOR_PARALLEL){
+            try {
+                for (Future<Void> worker : ForkJoinPool.commonPool().invokeAll(workers)) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                // Keep the factors of the last calibration
+                Thread.currentThread().interrupt();
+                hasInitialModel = false;
+                return false;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "RANSAC worker failed, keeping the last factors", e.getCause());
+                hasInitialModel = false;
+                return false;
+            }
+        } else {
+            for(RansacWorker worker : workers){
+                worker.call();
+            }
+        }
 
-        // Number of point in maybeInlier
-        int numMaybeInlier = (int) (numValidPoint * percentagePossibleInlier);
+        hasInitialModel = false;
 
-        // Number of point in consensusSet: range [numMaybeInlier, numVisiblePoint]
-        int numConsensusSet;
+        // Reduction in the order of the iterations: like in a single loop, the last model wins a tie
+        RansacWorker best = null;
+        for(RansacWorker worker : workers){
+            if(Double.isFinite(worker.bestScaleFactor) && (best == null || worker.numBestConsensusSet >= best.numBestConsensusSet)){
+                best = worker;
+            }
+        }
 
-        for(int i=0; i<numberOfIterations; i++){
-            Integer[] possibleInlier = new Integer[numMaybeInlier];
+        if(best == null) {
+            return false;
+        }
 
-            // Sort possibleInlier: it will help to find the point not included faster
-            // Use set to avoid repetion
-            SortedSet<Integer> possibiliInlierSet = new TreeSet<>();
-            while(possibiliInlierSet.size() < numMaybeInlier){
-                possibiliInlierSet.add(rnd.nextInt(numValidPoint));
-            }
-            // possibleInlier: Points choosen randomly from the dataset
-            possibleInlier = possibiliInlierSet.toArray(possibleInlier);
+        // Save the new value
+        scaleFactor = best.bestScaleFactor;
+        shiftFactor = best.bestShiftFactor;
+        bestConsensusSet = best.bestConsensusSet;
+        numBestConsensusSet = best.numBestConsensusSet;
 
-            // Possible scaleFactor and shiftFactor estimated from possibleInlier
-            double possibleScaleFactor;
-            double possibleShiftFactor;
+        // Least squares on all the inliers of the best model, the workers are done
+        if(isMinimalSample && best.fitLeastSquares(bestConsensusSet, numBestConsensusSet) && best.fitScaleFactor > 0){
+            scaleFactor = best.fitScaleFactor;
+            shiftFactor = best.fitShiftFactor;
+        }
+        return true;
+    }
 
-            // Transform the array back to RansacIntelObject[]
-            RansacIntelObject[] tmp = new RansacIntelObject[possibleInlier.length];
+    // RANSAC on a range of the iterations. The points are read from the Calibrator, everything else is
+    // in the buffers of the worker, reused between the calls.
+    private class RansacWorker implements Callable<Void> {
+        private int fromIteration;
+        private int toIteration;
+        private int numWorkers;
+        private SplittableRandom rnd;
+
+        // Permutation used for the sampling and consensus sets
+        private int[] indices = new int[0];
+        private int[] consensusSet = new int[0];
+        private int[] bestConsensusSet = new int[0];
+
+        // Best model of the range, NaN if none was valid
+        private double bestScaleFactor;
+        private double bestShiftFactor;
+        private int numBestConsensusSet;
+
+        // Result of fitLeastSquares()
+        private double fitScaleFactor;
+        private double fitShiftFactor;
+
+        void prepare(int fromIteration, int toIteration, int numWorkers, SplittableRandom rnd){
+            this.fromIteration = fromIteration;
+            this.toIteration = toIteration;
+            this.numWorkers = numWorkers;
+            this.rnd = rnd;
+            if(indices.length < numValidPoint){
+                indices = new int[numValidPoint];
+                consensusSet = new int[numValidPoint];
+                bestConsensusSet = new int[numValidPoint];
+            }
+        }
 
-            for (int j = 0; j < tmp.length; j++) {
-                tmp[j] = ransacIntelObjects[possibleInlier[j]];
+        @Override
+        public Void call() {
+            if(isMinimalSample){
+                runMinimalSample();
+                return null;
             }
 
-            // Calculate possibileScaleFactor and possibileShiftFactor
-            double[] factors = calibrateIntel(tmp);
+            // RANSAC algorithm
+            // Based on the pseudo-code of https://it.wikipedia.org/wiki/RANSAC
+            bestScaleFactor = Double.NaN;
+            bestShiftFactor = Double.NaN;
+            numBestConsensusSet = 0;
 
-            // Calibration failed, continue with a new dataset
-            if(factors == null){
-                continue;
-            }
+            // Init
+
+            // Number of point in maybeInlier
+            int numMaybeInlier = (int) (numValidPoint * percentagePossibleInlier);
 
-            // Get possible values
-            possibleScaleFactor = factors[0];
-            possibleShiftFactor = factors[1];
+            // Number of point in consensusSet: range [numMaybeInlier, numVisiblePoint]
+            int numConsensusSet;
 
-            // Skip if value is not valid
-            if(possibleScaleFactor <= 0) {
-                continue;
+            // Permutation of the points: the first numMaybeInlier are the possible inliers of the iteration,
+            // the others are the points to test. It stays a permutation between the iterations.
+            for(int k=0; k<numValidPoint; k++){
+                indices[k] = k;
             }
 
-            // Get min and max error to normalize later
-            double minError = Double.MAX_VALUE;
-            double maxError = Double.MIN_VALUE;
+            for(int i=fromIteration; i<toIteration; i++){
+                // possibleInlier: Points choosen randomly from the dataset, partial Fisher-Yates shuffle
+                for(int j=0; j<numMaybeInlier; j++){
+                    int swap = j + rnd.nextInt(numValidPoint - j);
+                    int index = indices[swap];
+                    indices[swap] = indices[j];
+                    indices[j] = index;
+                }
 
-            for(int k = 0, j = 0; k < numValidPoint; k++) {
-                if(j < numMaybeInlier && k == possibleInlier[j]) {
-                    // If already in array, skip
-                    j++;
+                // Calculate possibileScaleFactor and possibileShiftFactor, continue with a new dataset if it fails
+                if(!fitLeastSquares(indices, numMaybeInlier)){
                     continue;
                 }
+                double possibleScaleFactor = fitScaleFactor;
+                double possibleShiftFactor = fitShiftFactor;
 
-                // New point, calculate quadratic error
-                RansacIntelObject foreignObj = ransacIntelObjects[k];
+                // Skip if value is not valid
+                if(possibleScaleFactor <= 0) {
+                    continue;
+                }
 
-                double thisError = Math.pow((foreignObj.prediction * possibleScaleFactor + possibleShiftFactor) - foreignObj.groundTruth, 2);
+                // Get min and max error of the points not in possibleInlier, to normalize later
+                double minError = Double.MAX_VALUE;
+                double maxError = Double.MIN_VALUE;
+
+                for(int j = numMaybeInlier; j < numValidPoint; j++) {
+                    int k = indices[j];
+                    double residual = predictions[k] * possibleScaleFactor + possibleShiftFactor - groundTruths[k];
+                    double thisError = residual * residual;
+
+                    if(thisError > maxError) {
+                        maxError = thisError;
+                    }
+                    if(thisError < minError) {
+                        minError = thisError;
+                    }
+                }
 
-                if(thisError > maxError) {
-                    maxError = thisError;
+                // ConsensusSet: possible consensus set
+                System.arraycopy(indices, 0, consensusSet, 0, numMaybeInlier);
+                numConsensusSet = numMaybeInlier;
+
+                // Add points not included in possibleInlier with error minor than threshold
+                for(int j = numMaybeInlier; j < numValidPoint; j++) {
+                    int k = indices[j];
+                    double residual = predictions[k] * possibleScaleFactor + possibleShiftFactor - groundTruths[k];
+                    double thisError = residual * residual;
+                    double normalizedError = (thisError - minError) / (maxError - minError);
+
+                    if(normalizedError < normalizedThreshold) {
+                        consensusSet[numConsensusSet++] = k;
+                    }
                 }
-                if(thisError < minError) {
-                    minError = thisError;
+
+                // The new model is better if the consensus set has more points
+                if(numConsensusSet >= numBestConsensusSet) {
+                    bestScaleFactor = possibleScaleFactor;
+                    bestShiftFactor = possibleShiftFactor;
+                    int[] swap = bestConsensusSet;
+                    bestConsensusSet = consensusSet;
+                    consensusSet = swap;
+                    numBestConsensusSet = numConsensusSet;
                 }
             }
+            return null;
+        }
+
+        private void runMinimalSample(){
+            bestScaleFactor = Double.NaN;
+            bestShiftFactor = Double.NaN;
+            numBestConsensusSet = 0;
+            if(numValidPoint < 2){
+                return;
+            }
+
+            for(int k=0; k<numValidPoint; k++){
+                indices[k] = k;
+            }
 
-            // ConsensusSet: possible consensus set
-            Integer[] consensusSet = Arrays.copyOf(possibleInlier, numValidPoint);
-            numConsensusSet = numMaybeInlier;
+            // Every worker does its share of the iterations required by its best model
+            int numIterations = toIteration - fromIteration;
+            // The initial model is kept only if some of the points agree with it
+            int numInitialInliers = hasInitialModel && initialScaleFactor > 0 ? findInliers(initialScaleFactor, initialShiftFactor, consensusSet) : 0;
+            if(numInitialInliers > 0){
+                bestScaleFactor = initialScaleFactor;
+                bestShiftFactor = initialShiftFactor;
+                int[] swap = bestConsensusSet;
+                bestConsensusSet = consensusSet;
+                consensusSet = swap;
+                numBestConsensusSet = numInitialInliers;
+                if(isLocalOptimization){
+                    optimizeBest();
+                }
+                numIterations = Math.min(numIterations, getWorkerIterations());
+            }
+            for(int i=0; i<numIterations; i++){
+                // Two different points, partial Fisher-Yates shuffle
+                for(int j=0; j<2; j++){
+                    int swap = j + rnd.nextInt(numValidPoint - j);
+                    int index = indices[swap];
+                    indices[swap] = indices[j];
+                    indices[j] = index;
+                }
 
-            // Add points not included in possibleInlier with error minor than threshold
-            for(int k = 0, j = 0; k < numValidPoint; k++) {
-                if(j < numMaybeInlier && k == possibleInlier[j]) {
-                    // If already in possibleInlier, skip
-                    j++;
+                // Line through the two points
+                int first = indices[0];
+                int second = indices[1];
+                double deltaPrediction = predictions[second] - predictions[first];
+                if(deltaPrediction == 0){
+                    continue;
+                }
+                double possibleScaleFactor = (groundTruths[second] - groundTruths[first]) / deltaPrediction;
+                double possibleShiftFactor = groundTruths[first] - possibleScaleFactor * predictions[first];
+                if(!(possibleScaleFactor > 0) || !Double.isFinite(possibleShiftFactor)) {
                     continue;
                 }
 
-                // New point
-                RansacIntelObject foreignObj = ransacIntelObjects[k];
+                int numConsensusSet = findInliers(possibleScaleFactor, possibleShiftFactor, consensusSet);
+                if(numConsensusSet >= numBestConsensusSet){
+                    bestScaleFactor = possibleScaleFactor;
+                    bestShiftFactor = possibleShiftFactor;
+                    int[] swap = bestConsensusSet;
+                    bestConsensusSet = consensusSet;
+                    consensusSet = swap;
+                    numBestConsensusSet = numConsensusSet;
 
-                double thisError = Math.pow((foreignObj.prediction * possibleScaleFactor + possibleShiftFactor) - foreignObj.groundTruth, 2);
-                double normalizedError = (thisError - minError) / (maxError - minError);
+                    if(isLocalOptimization){
+                        optimizeBest();
+                    }
 
-                //
-                if(normalizedError < normalizedThreshold) {
-                    consensusSet[numConsensusSet++] = k;
+                    numIterations = Math.min(numIterations, getWorkerIterations());
                 }
             }
+        }
+
+        // Share of this worker of the iterations required by the best model, in long since the rule can
+        // require Integer.MAX_VALUE iterations
+        private int getWorkerIterations(){
+            long required = getAdaptiveIterations((double) numBestConsensusSet / numValidPoint, confidence);
+            return (int) Math.min(Integer.MAX_VALUE, (required + numWorkers - 1) / numWorkers);
+        }
 
-            // The new model is better if the consensus set has more points
-            if(numConsensusSet >= numBestConsensusSet) {
-                bestScaleFactor = possibleScaleFactor;
-                bestShiftFactor = possibleShiftFactor;
-                bestConsensusSet = Arrays.copyOfRange(consensusSet, 0, numConsensusSet);
+        // Least squares on the inliers of the best model, repeated while the inliers don't decrease
+        private void optimizeBest(){
+            for(int step=0; step<MAX_LOCAL_OPTIMIZATION_STEPS; step++){
+                if(!fitLeastSquares(bestConsensusSet, numBestConsensusSet) || !(fitScaleFactor > 0)){
+                    return;
+                }
+                int numConsensusSet = findInliers(fitScaleFactor, fitShiftFactor, consensusSet);
+                if(numConsensusSet < numBestConsensusSet){
+                    return;
+                }
+
+                bestScaleFactor = fitScaleFactor;
+                bestShiftFactor = fitShiftFactor;
+                int[] swap = bestConsensusSet;
+                bestConsensusSet = consensusSet;
+                consensusSet = swap;
+                if(numConsensusSet == numBestConsensusSet){
+                    return;
+                }
                 numBestConsensusSet = numConsensusSet;
             }
+        }
 
-            // Save the new value
-            if(Double.isFinite(bestScaleFactor)) {
-                scaleFactor = bestScaleFactor;
-                shiftFactor = bestShiftFactor;
+        // Points with a relative error under inlierThreshold, written in inliers
+        private int findInliers(double scale, double shift, int[] inliers){
+            int numInliers = 0;
+            for(int k = 0; k < numValidPoint; k++) {
+                double residual = predictions[k] * scale + shift - groundTruths[k];
+                if(Math.abs(residual) <= inlierThreshold * groundTruths[k]) {
+                    inliers[numInliers++] = k;
+                }
             }
+            return numInliers;
         }
 
-    }
-
-
-
-
-    public double[] calibrateIntel(RansacIntelObject[] objects){
-        // Least-square algorithm
-        // Matrix A = [[a_00, a_01], [a_10, a_11]]
-        // a_01 = a_10
-        // Array B = [b_0, b_1]
+        // Least squares of groundTruth = scale * prediction + shift on the first count points of indices.
+        // The result is in fitScaleFactor and fitShiftFactor, false if the system can't be solved.
+        private boolean fitLeastSquares(int[] indices, int count){
+            // Matrix A = [[a_00, a_01], [a_10, a_11]]
+            // a_01 = a_10
+            // Array B = [b_0, b_1]
 
-        double a00 = 0.0;
-        double a01 = 0.0;
-        double a11 = objects.length;
+            double a00 = 0.0;
+            double a01 = 0.0;
+            double a11 = count;
 
-        // The factor a10 is equal to a01
+            // The factor a10 is equal to a01
 
-        double b0 = 0.0;
-        double b1 = 0.0;
+            double b0 = 0.0;
+            double b1 = 0.0;
 
-        for(int i = 0; i<objects.length;i++){
-            a00 += objects[i].prediction * objects[i].prediction;
-            a01 += objects[i].prediction;
+            for(int i = 0; i < count; i++){
+                double prediction = predictions[indices[i]];
+                double groundTruth = groundTruths[indices[i]];
+                a00 += prediction * prediction;
+                a01 += prediction;
 
-            b0 += objects[i].prediction * objects[i].groundTruth;
-            b1 += objects[i].groundTruth;
-        }
-
-        // Calculate determinant of A
-        double detA = a00 * a11 - a01 * a01;
-
-        // The determinant must be strictly positive
-        if(detA > 0.0){
+                b0 += prediction * groundTruth;
+                b1 += groundTruth;
+            }
 
-            double scaleFactor = (a11*b0-a01*b1)/detA;
-            double shiftFactor = (-a01*b0+a00*b1)/detA;
+            // Calculate determinant of A
+            double detA = a00 * a11 - a01 * a01;
 
-            // Save the new value
-            if (Double.isFinite(scaleFactor) && Double.isFinite(shiftFactor)) {
-                return new double[]{scaleFactor, shiftFactor};
-            } else {
-                return null;
+            // The determinant must be strictly positive
+            if(detA > 0.0){
+                fitScaleFactor = (a11*b0-a01*b1)/detA;
+                fitShiftFactor = (-a01*b0+a00*b1)/detA;
+                return Double.isFinite(fitScaleFactor) && Double.isFinite(fitShiftFactor);
             }
-        }
 
-        // Determinant not valid
-        return null;
+            // Determinant not valid
+            return false;
+        }
     }
 
 
     // ---------------- Utils method ------------------
 
     // Distance from camera to point
-    private double distanceTo(float[] point, float[] camera) {
-        return Math.sqrt(Math.pow(point[0] - camera[0], 2) + Math.pow(point[1] - camera[1], 2) + Math.pow(point[2] - camera[2], 2));
-    }
-
-
-    // Get predicted distance from prediction of a specific point
-    private float getPredictionFromPoint(FloatBuffer prediction, Point point){
-        int position = (depthWidth * point.y) + point.x;
-        prediction.rewind();
-
-        return prediction.get(position);    // qualche controllo in caso di errore???
+    private double distanceTo(float x, float y, float z, float[] camera) {
+        double dx = x - camera[0];
+        double dy = y - camera[1];
+        double dz = z - camera[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
     }
 }
 
@@ -1,149 +1,181 @@
 package my.application.sda.calibrator;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.media.Image;
-
-import org.tensorflow.lite.DataType;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
-import org.tensorflow.lite.support.image.ImageProcessor;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeOp;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import my.application.sda.model.DelegateSelector;
 import my.application.sda.model.TFLiteDepthModel;
 
 public class DepthCalibrator {
     // ML model for depth inference
     private TFLiteDepthModel model;
-    private ImageProcessor imageProcessor;
 
-    // Current image
-    private Bitmap imageBitmap;
-    private Bitmap depthBitmap;
+    // Size of the camera image
+    private int imageWidth;
+    private int imageHeight;
 
     // Calibrator
     private Calibrator calibrator;
+    // Calibration across the frames, used by calibrateStreaming()
+    private StreamingCalibrator streamingCalibrator;
     final private int numberOfIterations = 200;
     final private float normalizedThreshold = 0.08f;
     final private float percentagePossibleInlier = 0.3f;
-
-    // Outputs
-    private FloatBuffer depthMap;
+    // Minimal-sample RANSAC: relative error of the inliers and confidence of the stopping rule
+    final private float inlierThreshold = 0.1f;
+    final private float confidence = 0.99f;
+
+    // Outputs: a different DepthField for each predict(), so that the previous one can still be read.
+    // The fields are taken from the pool, and given back with recycle() when they are not used anymore.
+    private DepthField depthField;
+    private final BlockingQueue<DepthField> depthFieldPool = new LinkedBlockingQueue<>();
     private double scaleFactor;
     private double shiftFactor;
+    private CalibrationSamples calibrationSamples;
 
 
     public DepthCalibrator(Context context, int viewWidth, int viewHeight){
-        model = new TFLiteDepthModel("tflite_pydnet.tflite");
+        this(context, viewWidth, viewHeight, 4);
+    }
+
+    // numThreads is the maximum number of CPU threads of the interpreter
+    public DepthCalibrator(Context context, int viewWidth, int viewHeight, int numThreads){
+        this(new TFLiteDepthModel("tflite_pydnet.tflite"), viewWidth, viewHeight);
         try {
-            model.init(context);
+            model.init(context, numThreads);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        imageProcessor = new ImageProcessor.Builder().add(new ResizeOp(model.depthHeight, model.depthWidth, ResizeOp.ResizeMethod.BILINEAR))
-                                                     .add(new NormalizeOp(0,255))
-                                                     .build();
+    // Use a model already loaded, like the one of the ModelRegistry
+    public DepthCalibrator(TFLiteDepthModel model, int viewWidth, int viewHeight){
+        this.model = model;
 
-        calibrator = new Calibrator(viewWidth, viewHeight, model.depthWidth, model.depthHeight, numberOfIterations, normalizedThreshold, percentagePossibleInlier);
+        imageWidth = viewWidth;
+        imageHeight = viewHeight;
+        calibrator = new Calibrator(viewWidth, viewHeight, numberOfIterations, normalizedThreshold, percentagePossibleInlier);
+        calibrator.setMinimalSample(inlierThreshold, confidence, true);
+        streamingCalibrator = new StreamingCalibrator(calibrator, inlierThreshold);
     }
 
-    public void doInference(FrameContainer frameContainer){
+    // RANSAC of the calibration split between numWorkers workers, seed to repeat the same results
+    public void setCalibrationParallelism(int numWorkers, long seed) {
+        calibrator.setParallelism(numWorkers, seed);
+    }
 
-        imageBitmap = frameContainer.getImage();
-
-        // Resize, crop and normalize via Tensorflow
-        TensorImage tensorImage = new TensorImage();
-        tensorImage.load(imageBitmap);
-        TensorImage normalizedTensorImage = imageProcessor.process(tensorImage);
-        ByteBuffer modelInput = normalizedTensorImage.getBuffer();
-
-        // Get prediction
-        ByteBuffer inference = model.doInference(modelInput);
-
-        FloatBuffer floatOutput = inference.asFloatBuffer();
-        FloatBuffer normalizedOutput = normalizeOutput(floatOutput);
-
-        // To visualize if the output is correct
-        Bitmap argbOutputBitmap = Bitmap.createBitmap(model.depthWidth, model.depthHeight, Bitmap.Config.ARGB_8888);
-        for(int x=0; x<model.depthWidth; x++){
-            for(int y=0; y<model.depthHeight; y++){
-                float depth = normalizedOutput.get(model.depthWidth*y + x);
-                int pixel = (int) (depth*255);
-                floatOutput.rewind();
-                int color = Color.rgb(pixel, pixel, pixel);
-                argbOutputBitmap.setPixel(x,y,color);
-            }
-        }
-        normalizedOutput.rewind();
+    // Forget the calibration of the previous frames used by calibrateStreaming()
+    public void resetCalibration() {
+        streamingCalibrator.reset();
+    }
 
-        depthBitmap = Bitmap.createScaledBitmap(argbOutputBitmap, imageBitmap.getWidth(), imageBitmap.getHeight(), true);
+    // Replace the model, for example after it was loaded again
+    public void setModel(TFLiteDepthModel model) {
+        this.model = model;
+        // The predictions of another model have another scale
+        resetCalibration();
+    }
 
-        // Calibrate depth map
-        calibrator.setCalibrator(frameContainer.getCameraPose(), frameContainer.getProjectionMatrix() , frameContainer.getViewMatrix());
-        calibrator.calibrate(normalizedOutput, frameContainer.getPointCloud());
+    public TFLiteDepthModel getModel() {
+        return model;
+    }
 
-        scaleFactor = calibrator.getScaleFactor();
-        shiftFactor = calibrator.getShiftFactor();
-        depthMap = bufferFromBitmap(depthBitmap);
+    public void doInference(FrameContainer frameContainer){
+        predict(frameContainer);
+        calibrate(frameContainer);
     }
 
+    // Estimate the relative depth of the frame with the neural network
+    public void predict(FrameContainer frameContainer){
+        preprocess(frameContainer);
+        estimateDepth();
+    }
 
-    private FloatBuffer normalizeOutput(FloatBuffer modelOutput) {
-        FloatBuffer result = FloatBuffer.allocate(modelOutput.remaining());
+    // Resize and normalize the image straight into the input of the model
+    public void preprocess(FrameContainer frameContainer){
+        frameContainer.writeInputTensor(model.getInput(), model.depthWidth, model.depthHeight);
+    }
 
-        float max = Float.MIN_VALUE;
-        float min = Float.MAX_VALUE;
+    // Run the model on the last preprocessed image
+    public void estimateDepth(){
+        ByteBuffer inference = model.doInference();
 
-        while(modelOutput.hasRemaining()){
-            float depth = modelOutput.get();
-            if(depth > max)
-                max = depth;
-            else if(depth < min)
-                min = depth;
+        depthField = depthFieldPool.poll();
+        // The fields of a previous model can have a different size
+        while (depthField != null && (depthField.getWidth() != model.outputWidth || depthField.getHeight() != model.outputHeight)) {
+            depthField = depthFieldPool.poll();
         }
+        if (depthField == null) {
+            depthField = new DepthField(model.outputWidth, model.outputHeight, imageWidth, imageHeight);
+        }
+        depthField.setNormalized(inference.asFloatBuffer());
+    }
+
+    // Can be called by any thread
+    public void recycle(DepthField depthField) {
+        depthFieldPool.offer(depthField);
+    }
 
-        modelOutput.rewind();
+    // Scale the depth of the last predict() in meters, using the point cloud of the frame
+    public void calibrate(FrameContainer frameContainer){
+        collectSamples(frameContainer);
+        calibrator.calibrate(depthField, calibrationSamples);
+
+        scaleFactor = calibrator.getScaleFactor();
+        shiftFactor = calibrator.getShiftFactor();
+    }
 
-        while(modelOutput.hasRemaining()){
-            float depth = modelOutput.get();
-            float normalizedDepth = (depth - min) / (max - min);
-            result.put(normalizedDepth);
+    // Like calibrate(), but the calibration of the previous frames is kept and updated with the points of
+    // the new one: for the consecutive frames of the live analysis. False if there is no estimate for this
+    // frame, the factors of the last calibration are kept in that case.
+    public boolean calibrateStreaming(FrameContainer frameContainer){
+        collectSamples(frameContainer);
+        if (!streamingCalibrator.calibrate(depthField, calibrationSamples)) {
+            return false;
         }
 
-        return result;
+        scaleFactor = streamingCalibrator.getScaleFactor();
+        shiftFactor = streamingCalibrator.getShiftFactor();
+        return true;
     }
 
-    // return a FloatBuffer, with values in [0,1], from a depth bitmap, with values from [0,255]
-    private FloatBuffer bufferFromBitmap(Bitmap bitmap){
-        int numValues= bitmap.getWidth()*bitmap.getHeight();
-        FloatBuffer result = FloatBuffer.allocate(DataType.FLOAT32.byteSize()*numValues);
+    private void collectSamples(FrameContainer frameContainer){
+        calibrator.setCalibrator(frameContainer.getCameraPose(), frameContainer.getProjectionMatrix() , frameContainer.getViewMatrix());
+        calibrator.setIntrinsics(frameContainer.getFx_d(), frameContainer.getFy_d(), frameContainer.getCx_d(), frameContainer.getCy_d());
+        calibrationSamples = calibrator.collectSamples(frameContainer.getPointCloud());
+    }
 
-        for (int i=0; i<numValues; i++){
-            int color = bitmap.getPixel(i % bitmap.getWidth(), i / bitmap.getWidth());
-            int R = (color >> 16) & 0xff;
 
-            float value = (float) R / 255f;
-            result.put(value);
-        }
+    // Scale the depth of the last predict() with feature points saved before
+    public void calibrate(CalibrationSamples samples){
+        calibrationSamples = samples;
+        calibrator.calibrate(depthField, samples);
+
+        scaleFactor = calibrator.getScaleFactor();
+        shiftFactor = calibrator.getShiftFactor();
+    }
 
-        result.rewind();
-        return result;
+    // Backend chosen for the depth model on this device
+    public DelegateSelector.Backend getBackend() {
+        return model.getBackend();
     }
 
-    public Bitmap getImageBitmap() {
-        return imageBitmap;
+    // Release the interpreter of the model
+    public void close() {
+        model.close();
     }
 
-    public Bitmap getDepthBitmap() { return depthBitmap; }
+    public DepthField getDepthField() {
+        return depthField;
+    }
 
-    public FloatBuffer getDepthMap() {
-        return depthMap;
+    // Feature points used by the last calibrate(), overwritten by the next one
+    public CalibrationSamples getCalibrationSamples() {
+        return calibrationSamples;
     }
 
     public double getScaleFactor() {
@@ -0,0 +1,77 @@
+package my.application.sda.calibrator;
+
+// Colormaps used to visualize the disparity: each one is a 256 entries lookup table of ARGB colors,
+// built the first time it is used.
+// GRAY must be used for the depth images that are saved: 3dSceneRecostruction.py reads the disparity
+// back from the gray levels.
+public enum DepthColormap {
+    GRAY,
+    TURBO,
+    INFERNO;
+
+    public static final int LUT_SIZE = 256;
+
+    // Key colors of inferno, equally spaced in [0,1]
+    private static final int[][] INFERNO_KEYS = {
+            {0, 0, 4}, {31, 12, 72}, {85, 15, 109}, {136, 34, 106}, {186, 54, 85},
+            {227, 89, 51}, {249, 140, 10}, {249, 201, 50}, {252, 255, 164}
+    };
+
+    private volatile int[] lut;
+
+    public int[] getLut() {
+        int[] result = lut;
+        if (result == null) {
+            result = buildLut();
+            lut = result;
+        }
+        return result;
+    }
+
+    private int[] buildLut() {
+        int[] result = new int[LUT_SIZE];
+        for (int i = 0; i < LUT_SIZE; i++) {
+            float x = (float) i / (LUT_SIZE - 1);
+            switch (this) {
+                case TURBO:
+                    result[i] = turbo(x);
+                    break;
+                case INFERNO:
+                    result[i] = inferno(x);
+                    break;
+                default:
+                    result[i] = argb(x, x, x);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    // Polynomial approximation of turbo by Anton Mikhailov
+    private static int turbo(float x) {
+        float r = 0.13572138f + x * (4.61539260f + x * (-42.66032258f + x * (132.13108234f + x * (-152.94239396f + x * 59.28637943f))));
+        float g = 0.09140261f + x * (2.19418839f + x * (4.84296658f + x * (-14.18503333f + x * (4.27729857f + x * 2.82956604f))));
+        float b = 0.10667330f + x * (12.64194608f + x * (-60.58204836f + x * (110.36276771f + x * (-89.90310912f + x * 27.34824973f))));
+        return argb(r, g, b);
+    }
+
+    // Linear interpolation between the key colors
+    private static int inferno(float x) {
+        float position = x * (INFERNO_KEYS.length - 1);
+        int key = Math.min((int) position, INFERNO_KEYS.length - 2);
+        float t = position - key;
+        int[] c0 = INFERNO_KEYS[key];
+        int[] c1 = INFERNO_KEYS[key + 1];
+        return argb((c0[0] + (c1[0] - c0[0]) * t) / 255f,
+                (c0[1] + (c1[1] - c0[1]) * t) / 255f,
+                (c0[2] + (c1[2] - c0[2]) * t) / 255f);
+    }
+
+    private static int argb(float r, float g, float b) {
+        return 0xff000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+    }
+
+    private static int toByte(float value) {
+        return Math.max(0, Math.min(255, Math.round(value * 255)));
+    }
+}
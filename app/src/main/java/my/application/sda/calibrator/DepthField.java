@@ -0,0 +1,189 @@
+package my.application.sda.calibrator;
+
+import android.graphics.Bitmap;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// Normalized disparity predicted by the depth model, at the resolution of the model output.
+// The values are read in image coordinates with bilinear sampling, so no full resolution copy of the
+// depth is needed: DistanceTracker and Calibrator only read a few pixels.
+public class DepthField {
+
+    private final float[] values;
+    private final int width;
+    private final int height;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    // Model pixels for each image pixel
+    private final float scaleX;
+    private final float scaleY;
+
+    // Minimum and range of the raw output of the model, to compare the values of different frames
+    private final float[] normalization = new float[2];
+
+    // Horizontal interpolation of render(), the same for every row and every frame: computed by the
+    // first render()
+    private int[] renderColumns0;
+    private int[] renderColumns1;
+    private float[] renderWeights;
+
+    public DepthField(int width, int height, int imageWidth, int imageHeight) {
+        this.values = new float[width * height];
+        this.width = width;
+        this.height = height;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.scaleX = (float) width / imageWidth;
+        this.scaleY = (float) height / imageHeight;
+    }
+
+    // Copy the raw output of the model and normalize it in [0,1]
+    public void setNormalized(FloatBuffer modelOutput) {
+        modelOutput.rewind();
+        modelOutput.get(values, 0, values.length);
+        modelOutput.rewind();
+        normalize(values, values.length, normalization);
+    }
+
+    // Normalize in place the first length values in [0,1]: min and max are found in a single pass,
+    // NaN values are ignored and become 0, like every value of a constant output
+    public static void normalize(float[] values, int length) {
+        normalize(values, length, null);
+    }
+
+    // Same as normalize(), the minimum and the range of the values are written in minAndRange if not
+    // null, with range 0 if the values can't be normalized
+    private static void normalize(float[] values, int length, float[] minAndRange) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            float value = values[i];
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        float range = max - min;
+        if (!(range > 0) || Float.isInfinite(range)) {
+            Arrays.fill(values, 0, length, 0f);
+            range = 0f;
+        }
+        if (minAndRange != null) {
+            minAndRange[0] = min;
+            minAndRange[1] = range;
+        }
+        if (range == 0f) {
+            return;
+        }
+
+        float scale = 1f / range;
+        for (int i = 0; i < length; i++) {
+            float value = (values[i] - min) * scale;
+            // value == value is false only for NaN
+            values[i] = value == value ? value : 0f;
+        }
+    }
+
+    // Disparity in [0,1] at the image coordinates (x,y), interpolated between the four closest values
+    public float sample(float x, float y) {
+        // Centers of the pixels are aligned, like a bilinear resize of the whole map
+        float mx = clamp((x + 0.5f) * scaleX - 0.5f, 0, width - 1);
+        float my = clamp((y + 0.5f) * scaleY - 0.5f, 0, height - 1);
+
+        int x0 = (int) mx;
+        int y0 = (int) my;
+        int x1 = Math.min(x0 + 1, width - 1);
+        int y1 = Math.min(y0 + 1, height - 1);
+        float fx = mx - x0;
+        float fy = my - y0;
+
+        float top = values[y0 * width + x0] * (1 - fx) + values[y0 * width + x1] * fx;
+        float bottom = values[y1 * width + x0] * (1 - fx) + values[y1 * width + x1] * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    // Map the disparity to colors with the lookup table of colormap, resizing it to the size of the
+    // camera image in the same pass, and write bitmap with a single setPixels. pixels must contain at
+    // least imageWidth * imageHeight values; both can be reused between calls.
+    public Bitmap render(DepthColormap colormap, int[] pixels, Bitmap bitmap) {
+        int[] lut = colormap.getLut();
+        int maxIndex = lut.length - 1;
+
+        if (renderWeights == null) {
+            renderColumns0 = new int[imageWidth];
+            renderColumns1 = new int[imageWidth];
+            renderWeights = new float[imageWidth];
+            for (int x = 0; x < imageWidth; x++) {
+                float mx = clamp((x + 0.5f) * scaleX - 0.5f, 0, width - 1);
+                renderColumns0[x] = (int) mx;
+                renderColumns1[x] = Math.min(renderColumns0[x] + 1, width - 1);
+                renderWeights[x] = mx - renderColumns0[x];
+            }
+        }
+        int[] columns0 = renderColumns0;
+        int[] columns1 = renderColumns1;
+        float[] weights = renderWeights;
+
+        for (int y = 0; y < imageHeight; y++) {
+            float my = clamp((y + 0.5f) * scaleY - 0.5f, 0, height - 1);
+            int row0 = (int) my * width;
+            int row1 = Math.min((int) my + 1, height - 1) * width;
+            float fy = my - (int) my;
+            int offset = y * imageWidth;
+
+            for (int x = 0; x < imageWidth; x++) {
+                float fx = weights[x];
+                float top = values[row0 + columns0[x]] * (1 - fx) + values[row0 + columns1[x]] * fx;
+                float bottom = values[row1 + columns0[x]] * (1 - fx) + values[row1 + columns1[x]] * fx;
+                float value = top * (1 - fy) + bottom * fy;
+
+                // NaN goes to the first entry
+                int index = value > 0 ? Math.min((int) (value * maxIndex), maxIndex) : 0;
+                pixels[offset + x] = lut[index];
+            }
+        }
+
+        bitmap.setPixels(pixels, 0, imageWidth, 0, 0, imageWidth, imageHeight);
+        return bitmap;
+    }
+
+    // Raw output of the model for the normalized value: raw = min + range * value
+    public float getRawMinimum() {
+        return normalization[0];
+    }
+
+    // 0 if the last output couldn't be normalized
+    public float getRawRange() {
+        return normalization[1];
+    }
+
+    // Row-major values, written by the DepthCalibrator
+    public float[] getValues() {
+        return values;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
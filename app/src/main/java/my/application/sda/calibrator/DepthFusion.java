@@ -0,0 +1,237 @@
+package my.application.sda.calibrator;
+
+import com.google.ar.core.Pose;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Fusion of the calibrated depth of consecutive frames. The fused depth of the previous frame is moved
+// in the current view with the ARCore poses and blended with the new prediction, weighted by how many
+// frames agreed on every pixel: the distances don't jump between two analyses of the same scene.
+// Where the two disagree too much (a person moved, a disocclusion) the new prediction is kept.
+// When the camera barely moved, the previous depth can be reused without running the model.
+// The values are calibrated disparities (1/meters): the fields returned are used with scale 1 and
+// shift 0. Not thread safe: called by the depth thread only, except for recycle().
+public class DepthFusion {
+
+    // Weight of a new prediction, and maximum weight of the history
+    private static final float NEW_WEIGHT = 1f;
+    private static final float MAX_WEIGHT = 4f;
+    // Weight kept by the history at every frame
+    private static final float DECAY = 0.7f;
+    // Relative difference of the disparities over which the history is discarded
+    private static final float MAX_DIFFERENCE = 0.25f;
+
+    // History older than this is discarded, like the one of the captures far apart in time
+    private static final long MAX_AGE_NANOS = 1000000000L;
+    // The model can be skipped if the camera moved less than this since the last prediction...
+    private static final float MAX_STILL_TRANSLATION = 0.02f;
+    private static final float MAX_STILL_ROTATION = (float) Math.toRadians(1);
+    // ...but only for a few frames in a row, since the people can move
+    private static final int MAX_SKIPPED_FRAMES = 2;
+
+    private final int width;
+    private final int height;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    // Fused disparity of the last frame and its weights, zero where unknown
+    private float[] values;
+    private float[] weights;
+    // Buffers of the reprojection
+    private float[] projectedValues;
+    private float[] projectedWeights;
+
+    private boolean hasHistory = false;
+    private Pose lastPose;
+    private long lastNanos;
+    // Pose of the last frame with a prediction
+    private Pose lastPredictionPose;
+    private int numSkippedFrames = 0;
+
+    private final float[] relative = new float[16];
+    private final BlockingQueue<DepthField> fieldPool = new LinkedBlockingQueue<>();
+
+    public DepthFusion(int width, int height, int imageWidth, int imageHeight) {
+        this.width = width;
+        this.height = height;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        values = new float[width * height];
+        weights = new float[width * height];
+        projectedValues = new float[width * height];
+        projectedWeights = new float[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // True if the previous depth can be used for the frame instead of a new prediction
+    public boolean canSkipPrediction(FrameContainer frame) {
+        if (!hasHistory || numSkippedFrames >= MAX_SKIPPED_FRAMES || System.nanoTime() - lastNanos > MAX_AGE_NANOS) {
+            return false;
+        }
+
+        Pose motion = lastPredictionPose.inverse().compose(frame.getCameraPose());
+        float translation = (float) Math.sqrt(motion.tx() * motion.tx() + motion.ty() * motion.ty() + motion.tz() * motion.tz());
+        // Angle of the rotation from the quaternion
+        float rotation = 2 * (float) Math.acos(Math.min(1f, Math.abs(motion.qw())));
+        return translation < MAX_STILL_TRANSLATION && rotation < MAX_STILL_ROTATION;
+    }
+
+    // Previous depth moved in the view of the frame, without a new prediction. Its weights decay as
+    // if a frame had passed.
+    public DepthField reuse(FrameContainer frame) {
+        reproject(frame);
+        // The camera barely moved: the holes left by the reprojection keep their previous value
+        for (int i = 0; i < values.length; i++) {
+            if (projectedWeights[i] <= 0 && weights[i] > 0) {
+                projectedValues[i] = values[i];
+                projectedWeights[i] = weights[i] * DECAY;
+            }
+        }
+        float[] swap = values;
+        values = projectedValues;
+        projectedValues = swap;
+        swap = weights;
+        weights = projectedWeights;
+        projectedWeights = swap;
+
+        numSkippedFrames++;
+        lastPose = frame.getCameraPose();
+        lastNanos = System.nanoTime();
+        return toField();
+    }
+
+    // Blend the prediction of the frame, calibrated with scale and shift, with the history
+    public DepthField fuse(FrameContainer frame, DepthField prediction, float scale, float shift) {
+        boolean isRecent = hasHistory && System.nanoTime() - lastNanos <= MAX_AGE_NANOS;
+        if (isRecent) {
+            reproject(frame);
+        }
+
+        float[] predicted = prediction.getValues();
+        for (int i = 0; i < values.length; i++) {
+            float value = predicted[i] * scale + shift;
+            if (!(value > 0)) {
+                // Behind the camera or NaN: the history, if any, is better
+                values[i] = isRecent ? projectedValues[i] : 0f;
+                weights[i] = isRecent ? projectedWeights[i] : 0f;
+                continue;
+            }
+
+            float previousWeight = isRecent ? projectedWeights[i] : 0f;
+            float previousValue = projectedValues[i];
+            if (previousWeight <= 0 || Math.abs(previousValue - value) > MAX_DIFFERENCE * value) {
+                values[i] = value;
+                weights[i] = NEW_WEIGHT;
+            } else {
+                float weight = previousWeight + NEW_WEIGHT;
+                values[i] = (previousValue * previousWeight + value * NEW_WEIGHT) / weight;
+                weights[i] = Math.min(weight, MAX_WEIGHT);
+            }
+        }
+
+        hasHistory = true;
+        numSkippedFrames = 0;
+        lastPose = frame.getCameraPose();
+        lastPredictionPose = lastPose;
+        lastNanos = System.nanoTime();
+        return toField();
+    }
+
+    // Forget the history, for example when the tracking is lost
+    public void reset() {
+        hasHistory = false;
+        numSkippedFrames = 0;
+    }
+
+    // Can be called by any thread
+    public void recycle(DepthField field) {
+        if (field.getWidth() == width && field.getHeight() == height) {
+            fieldPool.offer(field);
+        }
+    }
+
+    // Move the history from the last pose to the pose of the frame: every value is unprojected with the
+    // intrinsics, moved with the relative pose and projected again. When two values fall on the same
+    // pixel the closest one wins. The pixels without a value get weight 0.
+    private void reproject(FrameContainer frame) {
+        Arrays.fill(projectedValues, 0f);
+        Arrays.fill(projectedWeights, 0f);
+
+        // From the last camera to the current one
+        frame.getCameraPose().inverse().compose(lastPose).toMatrix(relative, 0);
+
+        float fx = frame.getFx_d();
+        float fy = frame.getFy_d();
+        float cx = frame.getCx_d();
+        float cy = frame.getCy_d();
+        // Model pixels for each image pixel
+        float scaleX = (float) width / imageWidth;
+        float scaleY = (float) height / imageHeight;
+
+        for (int y = 0; y < height; y++) {
+            float v = (y + 0.5f) / scaleY - 0.5f;
+            float rayY = -(v - cy) / fy;
+
+            for (int x = 0; x < width; x++) {
+                int index = y * width + x;
+                float disparity = values[index];
+                float weight = weights[index];
+                if (weight <= 0 || !(disparity > 0)) {
+                    continue;
+                }
+
+                // Point in the last camera: the camera looks along -z, the disparity is 1/distance
+                float u = (x + 0.5f) / scaleX - 0.5f;
+                float rayX = (u - cx) / fx;
+                float distance = 1f / disparity;
+                float norm = distance / (float) Math.sqrt(rayX * rayX + rayY * rayY + 1f);
+                float px = rayX * norm;
+                float py = rayY * norm;
+                float pz = -norm;
+
+                // Column-major matrix of the relative pose
+                float qx = relative[0] * px + relative[4] * py + relative[8] * pz + relative[12];
+                float qy = relative[1] * px + relative[5] * py + relative[9] * pz + relative[13];
+                float qz = relative[2] * px + relative[6] * py + relative[10] * pz + relative[14];
+                if (qz >= 0) {
+                    continue;
+                }
+
+                float depth = -qz;
+                float projectedU = fx * qx / depth + cx;
+                float projectedV = -fy * qy / depth + cy;
+                int targetX = (int) ((projectedU + 0.5f) * scaleX);
+                int targetY = (int) ((projectedV + 0.5f) * scaleY);
+                if (projectedU < -0.5f || projectedV < -0.5f || targetX >= width || targetY >= height) {
+                    continue;
+                }
+
+                float projectedDisparity = 1f / (float) Math.sqrt(qx * qx + qy * qy + qz * qz);
+                int target = targetY * width + targetX;
+                if (projectedDisparity > projectedValues[target]) {
+                    projectedValues[target] = projectedDisparity;
+                    projectedWeights[target] = weight * DECAY;
+                }
+            }
+        }
+    }
+
+    // Copy of the fused values, so that the history can change while the field is read
+    private DepthField toField() {
+        DepthField field = fieldPool.poll();
+        if (field == null) {
+            field = new DepthField(width, height, imageWidth, imageHeight);
+        }
+        System.arraycopy(values, 0, field.getValues(), 0, values.length);
+        return field;
+    }
+}
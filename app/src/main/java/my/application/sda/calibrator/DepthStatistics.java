@@ -0,0 +1,128 @@
+package my.application.sda.calibrator;
+
+// Summed-area tables of the calibrated disparity of a DepthField: the sum, the sum of the squares and the
+// number of valid values of any rectangle are read with four lookups each, so the mean and the variance
+// over a box cost the same for a small and for a big box. Built once per frame, then queried for every
+// person. The values that are not positive (invalid calibration, holes of the fusion) are left out.
+// The arrays are reused by the next build() if the size doesn't change. Not thread safe.
+public class DepthStatistics {
+
+    private int width;
+    private int height;
+    // Model pixels for each image pixel
+    private float scaleX;
+    private float scaleY;
+
+    // (width + 1) x (height + 1): the first row and column are zero
+    private double[] sums = new double[0];
+    private double[] squareSums = new double[0];
+    private int[] counts = new int[0];
+
+    // Cells of the last query, see toCells()
+    private final int[] cells = new int[4];
+
+    public DepthStatistics(){
+        super();
+    }
+
+    // Index the disparity of field calibrated with scale and shift
+    public void build(DepthField field, float scale, float shift) {
+        width = field.getWidth();
+        height = field.getHeight();
+        scaleX = (float) width / field.getImageWidth();
+        scaleY = (float) height / field.getImageHeight();
+
+        int stride = width + 1;
+        int size = stride * (height + 1);
+        if (sums.length != size) {
+            sums = new double[size];
+            squareSums = new double[size];
+            counts = new int[size];
+        }
+
+        float[] values = field.getValues();
+        for (int y = 0; y < height; y++) {
+            // Running sums of the row, added to the table of the row above
+            double rowSum = 0;
+            double rowSquareSum = 0;
+            int rowCount = 0;
+            int above = y * stride + 1;
+            int current = above + stride;
+
+            for (int x = 0; x < width; x++) {
+                float value = values[y * width + x] * scale + shift;
+                // false also for NaN
+                if (value > 0) {
+                    rowSum += value;
+                    rowSquareSum += value * value;
+                    rowCount++;
+                }
+                sums[current + x] = sums[above + x] + rowSum;
+                squareSums[current + x] = squareSums[above + x] + rowSquareSum;
+                counts[current + x] = counts[above + x] + rowCount;
+            }
+        }
+    }
+
+    // Number of valid values in the box, in image coordinates
+    public int count(float left, float top, float right, float bottom) {
+        return toCells(left, top, right, bottom) ? count(cells) : 0;
+    }
+
+    // Mean disparity in the box, NaN without valid values
+    public float mean(float left, float top, float right, float bottom) {
+        if (!toCells(left, top, right, bottom)) {
+            return Float.NaN;
+        }
+        int n = count(cells);
+        if (n == 0) {
+            return Float.NaN;
+        }
+        return (float) (sum(sums, cells) / n);
+    }
+
+    // Variance of the disparity in the box, NaN without valid values
+    public float variance(float left, float top, float right, float bottom) {
+        if (!toCells(left, top, right, bottom)) {
+            return Float.NaN;
+        }
+        int n = count(cells);
+        if (n == 0) {
+            return Float.NaN;
+        }
+        double mean = sum(sums, cells) / n;
+        // Rounding can make it slightly negative
+        return (float) Math.max(0, sum(squareSums, cells) / n - mean * mean);
+    }
+
+    private int count(int[] r) {
+        int stride = width + 1;
+        return counts[r[3] * stride + r[2]] - counts[r[1] * stride + r[2]] - counts[r[3] * stride + r[0]] + counts[r[1] * stride + r[0]];
+    }
+
+    private double sum(double[] table, int[] r) {
+        int stride = width + 1;
+        return table[r[3] * stride + r[2]] - table[r[1] * stride + r[2]] - table[r[3] * stride + r[0]] + table[r[1] * stride + r[0]];
+    }
+
+    // Cells of the model covered by the box, written in cells: x0, y0 inclusive and x1, y1 exclusive.
+    // False if the box is empty.
+    private boolean toCells(float left, float top, float right, float bottom) {
+        int x0 = clamp((int) Math.floor(left * scaleX), 0, width);
+        int y0 = clamp((int) Math.floor(top * scaleY), 0, height);
+        int x1 = clamp((int) Math.ceil(right * scaleX), 0, width);
+        int y1 = clamp((int) Math.ceil(bottom * scaleY), 0, height);
+        if (x1 <= x0 || y1 <= y0) {
+            return false;
+        }
+        cells[0] = x0;
+        cells[1] = y0;
+        cells[2] = x1;
+        cells[3] = y1;
+        return true;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,314 @@
+package my.application.sda.calibrator;
+
+import java.util.Arrays;
+
+// World-space map of the feature points seen in the last frames, used to calibrate the depth with
+// more points than the single point cloud of the current frame.
+// - points are identified by their ARCore id, a new observation of the same id is merged weighting
+//   the positions by confidence
+// - points with a different id falling in the same voxel are merged too, to avoid duplicates, and
+//   their id is registered as an alias of the point, so they keep merging even if they change voxel
+// - points not observed for maxAgeNanos are evicted, and no more than capacity points are kept
+// Everything is stored in primitive arrays allocated in the constructor. Not thread-safe: it is
+// meant to be used only by the GL thread.
+public class FeaturePointMap {
+
+    private static final int EMPTY = -1;
+
+    // Upper bound of the merge weight, so that the position can still follow new observations
+    private static final float MAX_WEIGHT = 10f;
+
+    private final int capacity;
+    private final float voxelSize;
+    private final long maxAgeNanos;
+
+    // Points
+    private final int[] ids;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final float[] confidence;
+    private final float[] weight;
+    private final long[] lastSeen;
+    private int numPoints = 0;
+    private long lastUpdate = 0;
+
+    // Open addressing tables (linear probing): id -> index of the point, voxel -> index of the point
+    private final int tableMask;
+    private final int[] idKeys;
+    private final int[] idValues;
+    private final long[] voxelKeys;
+    private final int[] voxelValues;
+
+    // Ids merged into a point with another id, kept across the rebuilds of the tables. No more than
+    // capacity aliases are kept, so the id table holds at most 2 * capacity entries.
+    private final int[] aliasIds;
+    private final int[] aliasIndices;
+    private int numAliases = 0;
+    // New index of each point after the eviction, EMPTY if evicted
+    private final int[] remap;
+
+    public FeaturePointMap(int capacity, float voxelSize, long maxAgeNanos) {
+        this.capacity = capacity;
+        this.voxelSize = voxelSize;
+        this.maxAgeNanos = maxAgeNanos;
+
+        ids = new int[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        confidence = new float[capacity];
+        weight = new float[capacity];
+        lastSeen = new long[capacity];
+        aliasIds = new int[capacity];
+        aliasIndices = new int[capacity];
+        remap = new int[capacity];
+
+        // Keep the load factor under 0.5, with the ids and the aliases
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2) * 4;
+        tableMask = tableSize - 1;
+        idKeys = new int[tableSize];
+        idValues = new int[tableSize];
+        voxelKeys = new long[tableSize];
+        voxelValues = new int[tableSize];
+        clearTables();
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    public void clear() {
+        numPoints = 0;
+        lastUpdate = 0;
+        numAliases = 0;
+        clearTables();
+    }
+
+    // Merge the point cloud of the current frame in the map
+    public void update(PointCloudSnapshot pointCloud) {
+        long now = pointCloud.getTimestamp();
+        lastUpdate = now;
+
+        evictOlderThan(now - maxAgeNanos);
+
+        int[] cloudIds = pointCloud.getIds();
+        float[] cloudX = pointCloud.getX();
+        float[] cloudY = pointCloud.getY();
+        float[] cloudZ = pointCloud.getZ();
+        float[] cloudConfidence = pointCloud.getConfidence();
+
+        for (int i = 0; i < pointCloud.getNumPoints(); i++) {
+            float c = Math.max(cloudConfidence[i], 1e-3f);
+            long voxel = voxelKey(cloudX[i], cloudY[i], cloudZ[i]);
+
+            int index = findId(cloudIds[i]);
+            if (index == EMPTY) {
+                index = findVoxel(voxel);
+                if (index != EMPTY && numAliases < capacity) {
+                    // The next observations of this id are merged in the same point
+                    insertId(cloudIds[i], index);
+                    aliasIds[numAliases] = cloudIds[i];
+                    aliasIndices[numAliases] = index;
+                    numAliases++;
+                }
+            }
+
+            if (index != EMPTY) {
+                long previousVoxel = voxelKey(x[index], y[index], z[index]);
+
+                // Confidence-weighted merge with the known point
+                float w = weight[index];
+                float total = w + c;
+                x[index] = (x[index] * w + cloudX[i] * c) / total;
+                y[index] = (y[index] * w + cloudY[i] * c) / total;
+                z[index] = (z[index] * w + cloudZ[i] * c) / total;
+                confidence[index] = (confidence[index] * w + cloudConfidence[i] * c) / total;
+                weight[index] = Math.min(total, MAX_WEIGHT);
+                lastSeen[index] = now;
+
+                long mergedVoxel = voxelKey(x[index], y[index], z[index]);
+                if (mergedVoxel != previousVoxel) {
+                    // The point moved to another voxel
+                    removeVoxel(previousVoxel, index);
+                    insertVoxel(mergedVoxel, index);
+                }
+            } else if (numPoints < capacity) {
+                index = numPoints++;
+                ids[index] = cloudIds[i];
+                x[index] = cloudX[i];
+                y[index] = cloudY[i];
+                z[index] = cloudZ[i];
+                confidence[index] = cloudConfidence[i];
+                weight[index] = c;
+                lastSeen[index] = now;
+                insertId(cloudIds[i], index);
+                insertVoxel(voxel, index);
+            }
+            // else the map is full: the point is dropped until older points are evicted
+        }
+    }
+
+    // Copy in out the points inside the view frustum of viewProjectionMatrix (column-major, as
+    // returned by android.opengl.Matrix)
+    public void collectVisible(float[] viewProjectionMatrix, PointCloudSnapshot out) {
+        float[] m = viewProjectionMatrix;
+        out.clear();
+
+        for (int i = 0; i < numPoints; i++) {
+            float px = x[i];
+            float py = y[i];
+            float pz = z[i];
+
+            float clipW = m[3] * px + m[7] * py + m[11] * pz + m[15];
+            if (clipW <= 0) {
+                continue;
+            }
+            float clipX = m[0] * px + m[4] * py + m[8] * pz + m[12];
+            float clipY = m[1] * px + m[5] * py + m[9] * pz + m[13];
+            float clipZ = m[2] * px + m[6] * py + m[10] * pz + m[14];
+
+            if (clipX < -clipW || clipX > clipW || clipY < -clipW || clipY > clipW || clipZ < -clipW || clipZ > clipW) {
+                continue;
+            }
+
+            out.add(ids[i], px, py, pz, confidence[i]);
+        }
+
+        out.setTimestamp(lastUpdate);
+    }
+
+    // ---------------- Eviction ------------------
+
+    // Remove the points not seen after minLastSeen, compacting the arrays, and rebuild the tables if any
+    // point was removed
+    private void evictOlderThan(long minLastSeen) {
+        int kept = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (lastSeen[i] < minLastSeen) {
+                remap[i] = EMPTY;
+                continue;
+            }
+            remap[i] = kept;
+            if (kept != i) {
+                ids[kept] = ids[i];
+                x[kept] = x[i];
+                y[kept] = y[i];
+                z[kept] = z[i];
+                confidence[kept] = confidence[i];
+                weight[kept] = weight[i];
+                lastSeen[kept] = lastSeen[i];
+            }
+            kept++;
+        }
+        if (kept == numPoints) {
+            // Nothing was evicted: the indices and the tables are still valid
+            return;
+        }
+        numPoints = kept;
+
+        // The aliases of the evicted points are dropped
+        int keptAliases = 0;
+        for (int i = 0; i < numAliases; i++) {
+            int index = remap[aliasIndices[i]];
+            if (index != EMPTY) {
+                aliasIds[keptAliases] = aliasIds[i];
+                aliasIndices[keptAliases] = index;
+                keptAliases++;
+            }
+        }
+        numAliases = keptAliases;
+
+        clearTables();
+        for (int i = 0; i < numPoints; i++) {
+            insertId(ids[i], i);
+            insertVoxel(voxelKey(x[i], y[i], z[i]), i);
+        }
+        for (int i = 0; i < numAliases; i++) {
+            insertId(aliasIds[i], aliasIndices[i]);
+        }
+    }
+
+    // ---------------- Hash tables ------------------
+
+    private void clearTables() {
+        Arrays.fill(idValues, EMPTY);
+        Arrays.fill(voxelValues, EMPTY);
+    }
+
+    private int findId(int id) {
+        for (int slot = mix(id) & tableMask; idValues[slot] != EMPTY; slot = (slot + 1) & tableMask) {
+            if (idKeys[slot] == id) {
+                return idValues[slot];
+            }
+        }
+        return EMPTY;
+    }
+
+    private void insertId(int id, int index) {
+        int slot = mix(id) & tableMask;
+        while (idValues[slot] != EMPTY && idKeys[slot] != id) {
+            slot = (slot + 1) & tableMask;
+        }
+        idKeys[slot] = id;
+        idValues[slot] = index;
+    }
+
+    private int findVoxel(long voxel) {
+        for (int slot = mix(voxel) & tableMask; voxelValues[slot] != EMPTY; slot = (slot + 1) & tableMask) {
+            if (voxelKeys[slot] == voxel) {
+                return voxelValues[slot];
+            }
+        }
+        return EMPTY;
+    }
+
+    private void insertVoxel(long voxel, int index) {
+        int slot = mix(voxel) & tableMask;
+        while (voxelValues[slot] != EMPTY && voxelKeys[slot] != voxel) {
+            slot = (slot + 1) & tableMask;
+        }
+        // The first point of the voxel stays its representative
+        if (voxelValues[slot] == EMPTY) {
+            voxelKeys[slot] = voxel;
+            voxelValues[slot] = index;
+        }
+    }
+
+    // Remove the entry of voxel if index is its representative. The following entries of the probe
+    // sequence are shifted back, so the table has no tombstones.
+    private void removeVoxel(long voxel, int index) {
+        int slot = mix(voxel) & tableMask;
+        while (voxelValues[slot] != EMPTY && voxelKeys[slot] != voxel) {
+            slot = (slot + 1) & tableMask;
+        }
+        if (voxelValues[slot] != index) {
+            return;
+        }
+
+        int hole = slot;
+        for (int next = (hole + 1) & tableMask; voxelValues[next] != EMPTY; next = (next + 1) & tableMask) {
+            // An entry can fill the hole only if the hole is between its home slot and its slot
+            int home = mix(voxelKeys[next]) & tableMask;
+            if (((next - home) & tableMask) >= ((next - hole) & tableMask)) {
+                voxelKeys[hole] = voxelKeys[next];
+                voxelValues[hole] = voxelValues[next];
+                hole = next;
+            }
+        }
+        voxelValues[hole] = EMPTY;
+    }
+
+    // Pack the three voxel coordinates in 21 bits each
+    private long voxelKey(float px, float py, float pz) {
+        long vx = (long) Math.floor(px / voxelSize) & 0x1FFFFF;
+        long vy = (long) Math.floor(py / voxelSize) & 0x1FFFFF;
+        long vz = (long) Math.floor(pz / voxelSize) & 0x1FFFFF;
+        return (vx << 42) | (vy << 21) | vz;
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -1,22 +1,46 @@
 package my.application.sda.calibrator;
 
-// Object to contain information about ARFrame and avoid issue with concurrency
+// Object to contain information about ARFrame and avoid issue with concurrency.
+// It is filled by the GL thread and read by the analysis through a FrameRing: the lazy conversions
+// are synchronized because more than one reader can pin the same frame.
 
 import android.graphics.Bitmap;
 import android.media.Image;
 
 import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
 
-import my.application.sda.calibrator.Point;
+import java.nio.ByteBuffer;
+
+import my.application.sda.helpers.ImageUtil;
 
 public class FrameContainer {
 
+    // Raw YUV_420_888 planes of the camera image, copied in direct buffers reused between frames
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int imageWidth;
+    private int imageHeight;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+
+    // ARGB image, converted from the planes only when it is requested
+    private int[] argb;
     private Bitmap image;
-    private Point[] pointCloud;
+    private boolean isImageConverted = false;
+
+    // Sharpness of the Y plane, computed only when requested
+    private static final int SHARPNESS_STEP = 2;
+    private double sharpness = Double.NaN;
+
+    private final PointCloudSnapshot pointCloud = new PointCloudSnapshot();
 
+    private TrackingState trackingState;
     private Pose cameraPose;
-    private float[] projectionMatrix;
-    private float[] viewMatrix;
+    private final float[] projectionMatrix = new float[16];
+    private final float[] viewMatrix = new float[16];
     private float fx_d;
     private float fy_d;
     private float cx_d;
@@ -26,29 +50,113 @@ public class FrameContainer {
         super();
     }
 
-    public void fill(Bitmap image, Pose cameraPose, float[] projectionMatrix, float[] viewMatrix, float fx_d, float fy_d, float cx_d, float cy_d) {
-        this.image = image;
+    // Copy the planes of the camera image: the image can be closed as soon as this method returns
+    public void fill(Image image, Pose cameraPose, float[] projectionMatrix, float[] viewMatrix, float fx_d, float fy_d, float cx_d, float cy_d) {
+        Image.Plane[] planes = image.getPlanes();
+
+        this.yPlane = copyPlane(planes[0].getBuffer(), this.yPlane);
+        this.uPlane = copyPlane(planes[1].getBuffer(), this.uPlane);
+        this.vPlane = copyPlane(planes[2].getBuffer(), this.vPlane);
+        this.imageWidth = image.getWidth();
+        this.imageHeight = image.getHeight();
+        this.yRowStride = planes[0].getRowStride();
+        this.uvRowStride = planes[1].getRowStride();
+        this.uvPixelStride = planes[1].getPixelStride();
+        this.isImageConverted = false;
+        this.sharpness = Double.NaN;
+
         this.cameraPose = cameraPose;
-        this.projectionMatrix = projectionMatrix;
-        this.viewMatrix = viewMatrix;
+        System.arraycopy(projectionMatrix, 0, this.projectionMatrix, 0, 16);
+        System.arraycopy(viewMatrix, 0, this.viewMatrix, 0, 16);
         this.fx_d = fx_d;
         this.fy_d = fy_d;
         this.cx_d = cx_d;
         this.cy_d = cy_d;
     }
 
-    public void setPointCloud(Point[] pointCloud) {
-        this.pointCloud = pointCloud;
+    // Copy every field of other, so that other can be recycled as soon as this method returns.
+    // other may be pinned by more readers: its planes are duplicated to leave their positions untouched
+    public void copyFrom(FrameContainer other) {
+        this.yPlane = copyPlane(other.yPlane.duplicate(), this.yPlane);
+        this.uPlane = copyPlane(other.uPlane.duplicate(), this.uPlane);
+        this.vPlane = copyPlane(other.vPlane.duplicate(), this.vPlane);
+        this.imageWidth = other.imageWidth;
+        this.imageHeight = other.imageHeight;
+        this.yRowStride = other.yRowStride;
+        this.uvRowStride = other.uvRowStride;
+        this.uvPixelStride = other.uvPixelStride;
+        this.isImageConverted = false;
+        this.sharpness = other.sharpness;
+
+        this.pointCloud.copyFrom(other.pointCloud);
+        this.trackingState = other.trackingState;
+        this.cameraPose = other.cameraPose;
+        System.arraycopy(other.projectionMatrix, 0, this.projectionMatrix, 0, 16);
+        System.arraycopy(other.viewMatrix, 0, this.viewMatrix, 0, 16);
+        this.fx_d = other.fx_d;
+        this.fy_d = other.fy_d;
+        this.cx_d = other.cx_d;
+        this.cy_d = other.cy_d;
+    }
+
+    // The points are copied: pointCloud can be updated as soon as this method returns
+    public void setPointCloud(PointCloudSnapshot pointCloud) {
+        this.pointCloud.copyFrom(pointCloud);
     }
 
-    public Bitmap getImage() {
+    public void setTrackingState(TrackingState trackingState) {
+        this.trackingState = trackingState;
+    }
+
+    // Convert the stored planes to ARGB the first time the image is requested after a fill
+    public synchronized Bitmap getImage() {
+        if (yPlane == null) {
+            return null;
+        }
+
+        if (!isImageConverted) {
+            int numPixels = imageWidth * imageHeight;
+            if (argb == null || argb.length != numPixels) {
+                argb = new int[numPixels];
+            }
+            ImageUtil.convertYUV420ToARGB8888(yPlane, uPlane, vPlane, imageWidth, imageHeight, yRowStride, uvRowStride, uvPixelStride, argb);
+
+            if (image == null || image.getWidth() != imageWidth || image.getHeight() != imageHeight) {
+                image = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
+            }
+            image.setPixels(argb, 0, imageWidth, 0, 0, imageWidth, imageHeight);
+            isImageConverted = true;
+        }
+
         return image;
     }
 
-    public Point[] getPointCloud() {
+    // Resize the image straight from the planes into the float32 RGB input of a model, with values in
+    // [0,1]: no ARGB conversion is needed
+    public void writeInputTensor(ByteBuffer tensor, int tensorWidth, int tensorHeight) {
+        ImageUtil.resizeYUV420ToFloatRGB(yPlane, uPlane, vPlane, imageWidth, imageHeight, yRowStride, uvRowStride, uvPixelStride, tensorWidth, tensorHeight, tensor);
+    }
+
+    public PointCloudSnapshot getPointCloud() {
         return pointCloud;
     }
 
+    public int getNumPoints() {
+        return pointCloud.getNumPoints();
+    }
+
+    public TrackingState getTrackingState() {
+        return trackingState;
+    }
+
+    // Variance of the Laplacian of the Y plane: the higher the value, the sharper the image
+    public synchronized double getSharpness() {
+        if (Double.isNaN(sharpness)) {
+            sharpness = computeSharpness();
+        }
+        return sharpness;
+    }
+
     public Pose getCameraPose() {
         return cameraPose;
     }
@@ -76,4 +184,48 @@ public class FrameContainer {
     public float getCy_d() {
         return cy_d;
     }
+
+    // The Laplacian is evaluated on a grid with step SHARPNESS_STEP to keep the cost low
+    private double computeSharpness() {
+        if (yPlane == null) {
+            return 0;
+        }
+
+        double sum = 0;
+        double sumSquared = 0;
+        int numSamples = 0;
+
+        for (int y = SHARPNESS_STEP; y < imageHeight - SHARPNESS_STEP; y += SHARPNESS_STEP) {
+            int row = y * yRowStride;
+            for (int x = SHARPNESS_STEP; x < imageWidth - SHARPNESS_STEP; x += SHARPNESS_STEP) {
+                int p = row + x;
+                int laplacian = (yPlane.get(p - 1) & 0xff) + (yPlane.get(p + 1) & 0xff)
+                        + (yPlane.get(p - yRowStride) & 0xff) + (yPlane.get(p + yRowStride) & 0xff)
+                        - 4 * (yPlane.get(p) & 0xff);
+                sum += laplacian;
+                sumSquared += laplacian * laplacian;
+                numSamples++;
+            }
+        }
+
+        if (numSamples == 0) {
+            return 0;
+        }
+
+        double mean = sum / numSamples;
+        return sumSquared / numSamples - mean * mean;
+    }
+
+    // Copy source in destination, allocating a new direct buffer only if destination is too small
+    private static ByteBuffer copyPlane(ByteBuffer source, ByteBuffer destination) {
+        source.rewind();
+        if (destination == null || destination.capacity() < source.remaining()) {
+            destination = ByteBuffer.allocateDirect(source.remaining());
+        }
+        destination.clear();
+        destination.put(source);
+        destination.flip();
+        source.rewind();
+        return destination;
+    }
 }
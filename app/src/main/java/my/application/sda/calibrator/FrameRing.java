@@ -0,0 +1,210 @@
+package my.application.sda.calibrator;
+
+import com.google.ar.core.TrackingState;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed-capacity ring of the last frames, shared without locks between the GL thread, that
+// writes the frames, and the threads that analyze them.
+// The FrameContainers are allocated once and recycled: writing a new frame overwrites the oldest
+// one that is not being read. A frame acquired for reading can't be overwritten until it is
+// released, so the reader always sees a consistent image, pose, point cloud and intrinsics.
+public class FrameRing {
+
+    // Weights of the metrics used to choose the frame to analyze
+    private static final double SHARPNESS_WEIGHT = 0.7;
+    private static final double POINTS_WEIGHT = 0.3;
+
+    // Attempts to pin the best frame before falling back to the latest one
+    private static final int MAX_SELECTION_ATTEMPTS = 3;
+
+    private final Slot[] slots;
+    private final AtomicLong lastSequence = new AtomicLong(0);
+    private int next = 0;
+
+    public FrameRing(int capacity) {
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    // ---------------- Writer ------------------
+
+    // Container to fill with the next frame, it becomes visible to the readers only after publish(), or is
+    // given back with abort().
+    // It never blocks: slots being read are skipped and null is returned if every slot is in use,
+    // in that case the frame has to be dropped.
+    public FrameContainer acquireWriteSlot() {
+        for (int i = 0; i < slots.length; i++) {
+            int index = (next + i) % slots.length;
+            if (slots[index].state.compareAndSet(Slot.FREE, Slot.WRITING)) {
+                next = index;
+                return slots[index].frame;
+            }
+        }
+        return null;
+    }
+
+    public void publish() {
+        Slot slot = slots[next];
+        slot.sequence = lastSequence.incrementAndGet();
+        slot.state.set(Slot.FREE);
+        next = (next + 1) % slots.length;
+    }
+
+    // Give back the slot of acquireWriteSlot() without publishing it, for example when the fill failed.
+    // The slot may contain part of the new frame, so it is marked as never published.
+    public void abort() {
+        Slot slot = slots[next];
+        slot.sequence = 0;
+        slot.state.set(Slot.FREE);
+    }
+
+    // ---------------- Readers ------------------
+
+    // Sequence number of the last published frame, 0 if no frame was published yet
+    public long getLastSequence() {
+        return lastSequence.get();
+    }
+
+    // Pin the most recent frame, null if no frame was published yet
+    public FrameContainer acquireLatest() {
+        for (int attempt = 0; attempt < MAX_SELECTION_ATTEMPTS; attempt++) {
+            int latest = -1;
+            long latestSequence = 0;
+            for (int i = 0; i < slots.length; i++) {
+                long sequence = slots[i].sequence;
+                if (sequence > latestSequence) {
+                    latestSequence = sequence;
+                    latest = i;
+                }
+            }
+
+            if (latest < 0) {
+                return null;
+            }
+            if (pin(slots[latest], latestSequence)) {
+                return slots[latest].frame;
+            }
+        }
+        return null;
+    }
+
+    // Choose and pin the frame to analyze using the sharpness of the image and the number of feature
+    // points. Frames without tracking are discarded, unless no frame is tracking.
+    public FrameContainer acquireBestFrame() {
+        int numSlots = slots.length;
+        long[] sequences = new long[numSlots];
+        double[] sharpness = new double[numSlots];
+        int[] numPoints = new int[numSlots];
+        boolean[] isTracking = new boolean[numSlots];
+
+        for (int attempt = 0; attempt < MAX_SELECTION_ATTEMPTS; attempt++) {
+            double maxSharpness = 0;
+            int maxPoints = 0;
+            boolean isAnyTracking = false;
+
+            // Read the metrics of every published frame, pinning one frame at a time
+            for (int i = 0; i < numSlots; i++) {
+                Slot slot = slots[i];
+                sequences[i] = 0;
+                long sequence = slot.sequence;
+                if (sequence == 0 || !pin(slot, sequence)) {
+                    continue;
+                }
+                try {
+                    sequences[i] = sequence;
+                    sharpness[i] = slot.frame.getSharpness();
+                    numPoints[i] = slot.frame.getNumPoints();
+                    isTracking[i] = slot.frame.getTrackingState() == TrackingState.TRACKING;
+                } finally {
+                    unpin(slot);
+                }
+
+                maxSharpness = Math.max(maxSharpness, sharpness[i]);
+                maxPoints = Math.max(maxPoints, numPoints[i]);
+                isAnyTracking |= isTracking[i];
+            }
+
+            int best = -1;
+            double bestScore = -1;
+
+            for (int i = 0; i < numSlots; i++) {
+                if (sequences[i] == 0 || (isAnyTracking && !isTracking[i])) {
+                    continue;
+                }
+
+                double score = 0;
+                if (maxSharpness > 0) {
+                    score += SHARPNESS_WEIGHT * sharpness[i] / maxSharpness;
+                }
+                if (maxPoints > 0) {
+                    score += POINTS_WEIGHT * (double) numPoints[i] / maxPoints;
+                }
+
+                // The newest frame wins in case of a tie
+                if (score > bestScore || (score == bestScore && sequences[i] > sequences[best])) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+
+            if (best < 0) {
+                return null;
+            }
+
+            // The chosen frame may have been overwritten in the meantime: try again in that case
+            if (pin(slots[best], sequences[best])) {
+                return slots[best].frame;
+            }
+        }
+
+        return acquireLatest();
+    }
+
+    // Make the frame available again to the writer
+    public void release(FrameContainer frame) {
+        for (Slot slot : slots) {
+            if (slot.frame == frame) {
+                unpin(slot);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("The frame does not belong to this ring");
+    }
+
+    // Pin the slot only if it still contains the frame with the given sequence
+    private static boolean pin(Slot slot, long sequence) {
+        while (true) {
+            int state = slot.state.get();
+            if (state == Slot.WRITING) {
+                return false;
+            }
+            if (slot.state.compareAndSet(state, state + 1)) {
+                if (slot.sequence == sequence) {
+                    return true;
+                }
+                unpin(slot);
+                return false;
+            }
+        }
+    }
+
+    private static void unpin(Slot slot) {
+        slot.state.decrementAndGet();
+    }
+
+    private static class Slot {
+        // state is WRITING while the writer fills the frame, otherwise the number of readers
+        static final int WRITING = -1;
+        static final int FREE = 0;
+
+        final FrameContainer frame = new FrameContainer();
+        final AtomicInteger state = new AtomicInteger(FREE);
+
+        // Sequence number of the frame in the slot, 0 if the slot was never published
+        volatile long sequence = 0;
+    }
+}
@@ -0,0 +1,135 @@
+package my.application.sda.calibrator;
+
+import com.google.ar.core.PointCloud;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Copy of an ARCore PointCloud stored as parallel arrays, one entry per point.
+// The arrays are reused between point clouds and grow only when a bigger point cloud arrives,
+// so no object is allocated for each point. Only the first getNumPoints() values are valid.
+public class PointCloudSnapshot {
+
+    private static final int FLOATS_PER_POINT = 4;
+
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] z = new float[0];
+    private float[] confidence = new float[0];
+    private int[] ids = new int[0];
+
+    // Points as returned by ARCore: x, y, z, confidence
+    private float[] interleaved = new float[0];
+
+    private int numPoints = 0;
+    private long timestamp = 0;
+
+    public PointCloudSnapshot(){
+        super();
+    }
+
+    public void fill(PointCloud pointCloud) {
+        FloatBuffer points = pointCloud.getPoints();
+        IntBuffer pointIds = pointCloud.getIds();
+        points.rewind();
+        pointIds.rewind();
+
+        int count = points.remaining() / FLOATS_PER_POINT;
+        ensureCapacity(count);
+
+        // One bulk copy for the points and one for the ids
+        points.get(interleaved, 0, count * FLOATS_PER_POINT);
+        pointIds.get(ids, 0, count);
+        points.rewind();
+        pointIds.rewind();
+
+        for (int i = 0, j = 0; i < count; i++, j += FLOATS_PER_POINT) {
+            x[i] = interleaved[j];
+            y[i] = interleaved[j + 1];
+            z[i] = interleaved[j + 2];
+            confidence[i] = interleaved[j + 3];
+        }
+
+        numPoints = count;
+        timestamp = pointCloud.getTimestamp();
+    }
+
+    public void copyFrom(PointCloudSnapshot other) {
+        ensureCapacity(other.numPoints);
+
+        System.arraycopy(other.x, 0, x, 0, other.numPoints);
+        System.arraycopy(other.y, 0, y, 0, other.numPoints);
+        System.arraycopy(other.z, 0, z, 0, other.numPoints);
+        System.arraycopy(other.confidence, 0, confidence, 0, other.numPoints);
+        System.arraycopy(other.ids, 0, ids, 0, other.numPoints);
+
+        numPoints = other.numPoints;
+        timestamp = other.timestamp;
+    }
+
+    public void clear() {
+        numPoints = 0;
+        timestamp = 0;
+    }
+
+    // Append a point, the arrays grow if needed
+    public void add(int id, float x, float y, float z, float confidence) {
+        if (numPoints == this.x.length) {
+            ensureCapacity(Math.max(16, 2 * numPoints));
+        }
+
+        this.ids[numPoints] = id;
+        this.x[numPoints] = x;
+        this.y[numPoints] = y;
+        this.z[numPoints] = z;
+        this.confidence[numPoints] = confidence;
+        numPoints++;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    // Grow the arrays keeping the valid points
+    private void ensureCapacity(int capacity) {
+        if (x.length >= capacity) {
+            return;
+        }
+
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        confidence = Arrays.copyOf(confidence, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        interleaved = new float[capacity * FLOATS_PER_POINT];
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public float[] getX() {
+        return x;
+    }
+
+    public float[] getY() {
+        return y;
+    }
+
+    public float[] getZ() {
+        return z;
+    }
+
+    public float[] getConfidence() {
+        return confidence;
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+}
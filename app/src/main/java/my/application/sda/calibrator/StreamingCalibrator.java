@@ -0,0 +1,183 @@
+package my.application.sda.calibrator;
+
+// Calibration of consecutive frames. The least squares sums of the inliers (prediction p, measured
+// disparity g: sum of p, p^2, p*g, g and the number of points) are kept across the frames, decayed at every
+// frame, so a frame only adds its own points and solves a 2x2 system. The DepthField is normalized frame
+// by frame, so the sums are kept on the raw output of the model, and the estimate is converted back to the
+// scale and shift of the normalized values of each frame.
+// When too few points of a frame agree with the current estimate, or their errors are biased, a full
+// RANSAC is run, starting from the last estimate, and the sums start again from its inliers. If the RANSAC
+// finds no model, the last estimate is kept while it is recent, without adding the points of the frame.
+// Not thread safe: called by the depth thread only.
+public class StreamingCalibrator {
+
+    // Weight kept by the sums of the previous frames at every frame
+    private static final double DECAY = 0.8;
+    // Ratio of inliers of a frame under which the estimate has drifted
+    private static final double MIN_INLIER_RATIO = 0.5;
+    // Mean relative error of the inliers of a frame over which the estimate has drifted
+    private static final double MAX_BIAS = 0.03;
+    // Estimates older than this are computed again, like the ones of captures far apart in time
+    private static final long MAX_AGE_NANOS = 1000000000L;
+
+    private final Calibrator calibrator;
+    // Relative error of the inliers
+    private final double inlierThreshold;
+
+    // Decayed sums of the inliers, with the raw predictions
+    private double sumPrediction;
+    private double sumSquarePrediction;
+    private double sumProduct;
+    private double sumGroundTruth;
+    private double sumWeight;
+
+    // Estimate on the raw predictions
+    private boolean hasEstimate = false;
+    private double rawScaleFactor;
+    private double rawShiftFactor;
+    private long lastNanos;
+
+    // Estimate for the normalized values of the last frame
+    private double scaleFactor = 1.;
+    private double shiftFactor = 0.;
+
+    // Points of the last frame, with the raw predictions
+    private double[] predictions = new double[0];
+    private double[] groundTruths = new double[0];
+
+    // calibrator runs the full RANSAC
+    public StreamingCalibrator(Calibrator calibrator, double inlierThreshold) {
+        this.calibrator = calibrator;
+        this.inlierThreshold = inlierThreshold;
+    }
+
+    // True if the factors are an estimate for this frame, otherwise they are the ones of the last estimate
+    public boolean calibrate(DepthField prediction, CalibrationSamples samples) {
+        int numSamples = samples.getNumSamples();
+        double rawMinimum = prediction.getRawMinimum();
+        double rawRange = prediction.getRawRange();
+        if (numSamples == 0 || !(rawRange > 0)) {
+            // Nothing to update
+            return false;
+        }
+
+        int[] samplesX = samples.getX();
+        int[] samplesY = samples.getY();
+        float[] samplesDisparity = samples.getDisparity();
+        if (predictions.length < numSamples) {
+            predictions = new double[numSamples];
+            groundTruths = new double[numSamples];
+        }
+        for (int i = 0; i < numSamples; i++) {
+            predictions[i] = rawMinimum + rawRange * prediction.sample(samplesX[i], samplesY[i]);
+            groundTruths[i] = samplesDisparity[i];
+        }
+
+        long now = System.nanoTime();
+        boolean isRecent = hasEstimate && now - lastNanos <= MAX_AGE_NANOS;
+        if (isRecent && !hasDrifted(numSamples)) {
+            decay(DECAY);
+            addInliers(numSamples, rawScaleFactor, rawShiftFactor);
+            solve();
+        } else {
+            // First frame, old estimate or drift: full RANSAC from the last estimate
+            if (hasEstimate) {
+                calibrator.setInitialModel(rawScaleFactor * rawRange, rawScaleFactor * rawMinimum + rawShiftFactor);
+            }
+            if (!calibrator.calibrate(prediction, samples)) {
+                // The factors of the calibrator are the ones of an older frame: the sums are not seeded again
+                // from them. The last estimate ages without the points of this frame.
+                if (!isRecent) {
+                    reset();
+                    return false;
+                }
+                updateFactors(rawMinimum, rawRange);
+                return true;
+            }
+            rawScaleFactor = calibrator.getScaleFactor() / rawRange;
+            rawShiftFactor = calibrator.getShiftFactor() - rawScaleFactor * rawMinimum;
+
+            decay(0);
+            addInliers(numSamples, rawScaleFactor, rawShiftFactor);
+            hasEstimate = sumWeight > 0;
+            if (!hasEstimate) {
+                return false;
+            }
+        }
+        lastNanos = now;
+
+        updateFactors(rawMinimum, rawRange);
+        return true;
+    }
+
+    // Forget the previous frames, for example when the tracking is lost
+    public void reset() {
+        hasEstimate = false;
+        decay(0);
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public double getShiftFactor() {
+        return shiftFactor;
+    }
+
+    // Estimate for the normalized values of the frame
+    private void updateFactors(double rawMinimum, double rawRange) {
+        scaleFactor = rawScaleFactor * rawRange;
+        shiftFactor = rawScaleFactor * rawMinimum + rawShiftFactor;
+    }
+
+    // True if too few points agree with the estimate, or if the points that agree are all on one side
+    private boolean hasDrifted(int numSamples) {
+        int numInliers = 0;
+        double sumError = 0;
+        for (int i = 0; i < numSamples; i++) {
+            if (isInlier(i, rawScaleFactor, rawShiftFactor)) {
+                numInliers++;
+                sumError += (predictions[i] * rawScaleFactor + rawShiftFactor - groundTruths[i]) / groundTruths[i];
+            }
+        }
+        return numInliers < MIN_INLIER_RATIO * numSamples || Math.abs(sumError / numInliers) > MAX_BIAS;
+    }
+
+    private void addInliers(int numSamples, double scale, double shift) {
+        for (int i = 0; i < numSamples; i++) {
+            if (isInlier(i, scale, shift)) {
+                sumPrediction += predictions[i];
+                sumSquarePrediction += predictions[i] * predictions[i];
+                sumProduct += predictions[i] * groundTruths[i];
+                sumGroundTruth += groundTruths[i];
+                sumWeight += 1;
+            }
+        }
+    }
+
+    private boolean isInlier(int i, double scale, double shift) {
+        return Math.abs(predictions[i] * scale + shift - groundTruths[i]) <= inlierThreshold * groundTruths[i];
+    }
+
+    private void decay(double factor) {
+        sumPrediction *= factor;
+        sumSquarePrediction *= factor;
+        sumProduct *= factor;
+        sumGroundTruth *= factor;
+        sumWeight *= factor;
+    }
+
+    // Least squares on the sums, the estimate doesn't change if the system can't be solved
+    private void solve() {
+        double detA = sumSquarePrediction * sumWeight - sumPrediction * sumPrediction;
+        if (!(detA > 0)) {
+            return;
+        }
+        double scale = (sumWeight * sumProduct - sumPrediction * sumGroundTruth) / detA;
+        double shift = (sumSquarePrediction * sumGroundTruth - sumPrediction * sumProduct) / detA;
+        if (scale > 0 && Double.isFinite(shift)) {
+            rawScaleFactor = scale;
+            rawShiftFactor = shift;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package my.application.sda.detector;
+
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import my.application.sda.calibrator.DepthField;
+
+// Robust distance of a person from the depth inside the box: a percentile of the distance, read from a
+// histogram of the calibrated disparity. The background that leaks in the box is farther than the person,
+// so a low percentile rejects it, while the median rejects the noise on both sides.
+// The box is sampled with a stride chosen to read at most maxSamples values, so the cost of a box doesn't
+// depend on its size or on the resolution of the depth. With many people the boxes are split between the
+// threads of the common ForkJoinPool.
+// The bins span the disparities of each box: the fields of the fused depth hold calibrated disparities
+// instead of normalized values, so no fixed range fits every field, and the range is found while sampling.
+public class BoxDepthEstimator {
+
+    private static final String TAG = "BoxDepthEstimator";
+
+    private final int numBins;
+    private final int maxSamples;
+    private final float percentile;
+    private final int minBoxesForParallel;
+
+    // numBins bins of the histogram, maxSamples samples read for every box, percentile of the distance in
+    // [0,1] (0.5 for the median), minBoxesForParallel number of boxes from which the work is split
+    public BoxDepthEstimator(int numBins, int maxSamples, float percentile, int minBoxesForParallel) {
+        this.numBins = numBins;
+        this.maxSamples = maxSamples;
+        this.percentile = percentile;
+        this.minBoxesForParallel = minBoxesForParallel;
+    }
+
+    // Default of the app: 30th percentile, up to 1024 samples for each box. A box takes a few microseconds,
+    // so the work is split only for crowds
+    public static BoxDepthEstimator createDefault() {
+        return createDefault(0.3f);
+    }
+
+    // Default of the app with the percentile chosen in the settings
+    public static BoxDepthEstimator createDefault(float percentile) {
+        return new BoxDepthEstimator(64, 1024, percentile, 32);
+    }
+
+    // Distance in meters for every box, NaN if the box has no valid disparity
+    public float[] estimate(final DepthField field, final float scale, final float shift, final List<RectF> boxes) {
+        final float[] distances = new float[boxes.size()];
+        int numThreads = Math.min(ForkJoinPool.getCommonPoolParallelism(), boxes.size());
+
+        if (boxes.size() < minBoxesForParallel || numThreads < 2) {
+            estimateRange(field, scale, shift, boxes, 0, boxes.size(), distances);
+            return distances;
+        }
+
+        // One contiguous range of boxes for every thread, each with its own buffers
+        List<Callable<Void>> ranges = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            final int from = boxes.size() * t / numThreads;
+            final int to = boxes.size() * (t + 1) / numThreads;
+            ranges.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    estimateRange(field, scale, shift, boxes, from, to, distances);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> range : ForkJoinPool.commonPool().invokeAll(ranges)) {
+                range.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.w(TAG, "Parallel estimate failed", e);
+            // Finish on this thread
+            estimateRange(field, scale, shift, boxes, 0, boxes.size(), distances);
+        }
+        return distances;
+    }
+
+    private void estimateRange(DepthField field, float scale, float shift, List<RectF> boxes, int from, int to, float[] distances) {
+        float[] samples = new float[maxSamples];
+        int[] histogram = new int[numBins];
+        for (int i = from; i < to; i++) {
+            distances[i] = estimate(field, scale, shift, boxes.get(i), samples, histogram);
+        }
+    }
+
+    private float estimate(DepthField field, float scale, float shift, RectF box, float[] samples, int[] histogram) {
+        int width = field.getWidth();
+        int height = field.getHeight();
+        float scaleX = (float) width / field.getImageWidth();
+        float scaleY = (float) height / field.getImageHeight();
+        float[] values = field.getValues();
+
+        int x0 = Math.max(0, (int) (box.left * scaleX));
+        int y0 = Math.max(0, (int) (box.top * scaleY));
+        int x1 = Math.min(width, (int) Math.ceil(box.right * scaleX));
+        int y1 = Math.min(height, (int) Math.ceil(box.bottom * scaleY));
+        if (x1 <= x0 || y1 <= y0) {
+            return Float.NaN;
+        }
+
+        // Same stride on both axes, so that the samples are spread on the whole box
+        long area = (long) (x1 - x0) * (y1 - y0);
+        int stride = Math.max(1, (int) Math.sqrt((double) area / maxSamples));
+        while ((long) ((x1 - x0 + stride - 1) / stride) * ((y1 - y0 + stride - 1) / stride) > maxSamples) {
+            stride++;
+        }
+
+        int numSamples = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int y = y0; y < y1; y += stride) {
+            int row = y * width;
+            for (int x = x0; x < x1; x += stride) {
+                float disparity = values[row + x] * scale + shift;
+                // false also for NaN
+                if (disparity > 0) {
+                    samples[numSamples++] = disparity;
+                    min = Math.min(min, disparity);
+                    max = Math.max(max, disparity);
+                }
+            }
+        }
+        if (numSamples == 0) {
+            return Float.NaN;
+        }
+        if (max <= min) {
+            return 1f / min;
+        }
+
+        for (int b = 0; b < numBins; b++) {
+            histogram[b] = 0;
+        }
+        float binsPerUnit = numBins / (max - min);
+        for (int s = 0; s < numSamples; s++) {
+            histogram[Math.min(numBins - 1, (int) ((samples[s] - min) * binsPerUnit))]++;
+        }
+
+        // The low distances are the high disparities: the bins are read from the top
+        float target = percentile * numSamples;
+        int cumulative = 0;
+        for (int b = numBins - 1; b >= 0; b--) {
+            if (cumulative + histogram[b] >= target && histogram[b] > 0) {
+                // Linear interpolation inside the bin
+                float fraction = (target - cumulative) / histogram[b];
+                float disparity = min + (b + 1 - fraction) / binsPerUnit;
+                return 1f / disparity;
+            }
+            cumulative += histogram[b];
+        }
+        return 1f / min;
+    }
+}
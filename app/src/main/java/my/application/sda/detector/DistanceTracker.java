@@ -11,24 +11,39 @@ import android.renderscript.Float3;
 import android.renderscript.Float4;
 
 import java.math.RoundingMode;
-import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import my.application.sda.calibrator.DepthField;
+import my.application.sda.calibrator.DepthStatistics;
+import my.application.sda.calibrator.PointCloudSnapshot;
+
 public class DistanceTracker {
 
     // Camera Parameters
-    private int height;
-    private int width;
     float fx_d, fy_d, cx_d, cy_d;
 
     // Depth
-    private FloatBuffer depthMap;
+    private DepthField depthField;
     private float scaleFactor;
     private float shiftFactor;
+    private final DepthStatistics depthStatistics = new DepthStatistics();
+    // The tables are built by the first getMeanDisparity() of a track(), only when needed
+    private boolean isDepthStatisticsBuilt = false;
+    // Null to use the mean of the torso
+    private BoxDepthEstimator boxDepthEstimator = BoxDepthEstimator.createDefault();
+
+    // Torso of a standing person, as fractions of the box: the center of the box often falls between
+    // the legs or on the background
+    private static final float TORSO_LEFT = 0.25f;
+    private static final float TORSO_RIGHT = 0.75f;
+    private static final float TORSO_TOP = 0.2f;
+    private static final float TORSO_BOTTOM = 0.5f;
 
     // Tracker
     private static final int[] COLORS = {
@@ -39,6 +54,7 @@ public class DistanceTracker {
     private static final int RED = 0;
     private static final int GREEN = 1;
     private static final int YELLOW = 2;
+    private static final int NONE = -1;
 
     private Paint[] paints;
 
@@ -46,6 +62,13 @@ public class DistanceTracker {
 
     private List<String> colored_shapes;
 
+    // Result of the last track()
+    private List<Detector.Recognition> recognitions;
+    private Float4[] coordinates;
+    private int[] personColors;
+    private float[] closestDistances;
+    private List<DistanceBetween> distancesList;
+
     public DistanceTracker(){
         super();
         paints = new Paint[3];
@@ -59,21 +82,32 @@ public class DistanceTracker {
     }
 
     public Bitmap getTrackedBitmap (Bitmap currentFrame, List<Detector.Recognition> mappedRecognitions){
+        track(mappedRecognitions);
+        return render(currentFrame);
+    }
 
-        colored_shapes = new ArrayList<>();
+    // Compute the position of every person and the distance from the closest one
+    public void track(List<Detector.Recognition> mappedRecognitions){
+        isDepthStatisticsBuilt = false;
+        classify(mappedRecognitions, get3dCoordinates(mappedRecognitions));
+    }
 
-        Bitmap resultBitmap = currentFrame.copy(Bitmap.Config.ARGB_8888, true);
-        final Canvas canvas = new Canvas(resultBitmap);
+    // Cheaper track() without the depth map: the position of every person is estimated from the
+    // feature points that fall in the central part of the box. Good enough for the distance from
+    // the camera, not for the distance between people close to each other.
+    public void trackFromFeaturePoints(List<Detector.Recognition> mappedRecognitions, PointCloudSnapshot pointCloud, float[] viewMatrix){
+        classify(mappedRecognitions, getFeaturePointCoordinates(mappedRecognitions, pointCloud, viewMatrix));
+    }
 
-        Float4[] coordinates = get3dCoordinates(mappedRecognitions);
+    private void classify(List<Detector.Recognition> mappedRecognitions, Float4[] coordinates){
 
-        // Formatting distance between persons
-        DecimalFormat df = new DecimalFormat("##.##");
-        df.setRoundingMode(RoundingMode.DOWN);
-
-        List<DistanceBetween> distancesList = new ArrayList<DistanceBetween>();
+        recognitions = mappedRecognitions;
+        colored_shapes = new ArrayList<>();
+        this.coordinates = coordinates;
+        personColors = new int[mappedRecognitions.size()];
+        closestDistances = new float[mappedRecognitions.size()];
+        distancesList = new ArrayList<DistanceBetween>();
 
-        // Draw shape
         for (int i = 0; i < mappedRecognitions.size(); i++) {
             float minDistance = Float.MAX_VALUE;
             int minJ = -1;
@@ -86,18 +120,18 @@ public class DistanceTracker {
                     }
                 }
             }
+            closestDistances[i] = minDistance;
             if (minDistance > 2) {
-                canvas.drawRect(mappedRecognitions.get(i).getLocation(), paints[GREEN]);
-                canvas.drawText(df.format(coordinates[i].w), mappedRecognitions.get(i).getLocation().centerX(), mappedRecognitions.get(i).getLocation().centerY(), paints[GREEN]);
+                personColors[i] = GREEN;
                 colored_shapes.add("GREEN");
             } else if (minDistance > 1 && minDistance < 2) {
-                canvas.drawRect(mappedRecognitions.get(i).getLocation(), paints[YELLOW]);
-                canvas.drawText(df.format(coordinates[i].w), mappedRecognitions.get(i).getLocation().centerX(), mappedRecognitions.get(i).getLocation().centerY(), paints[YELLOW]);
+                personColors[i] = YELLOW;
                 colored_shapes.add("YELLOW");
             } else if (minDistance < 1) {
-                canvas.drawRect(mappedRecognitions.get(i).getLocation(), paints[RED]);
-                canvas.drawText(df.format(coordinates[i].w), mappedRecognitions.get(i).getLocation().centerX(), mappedRecognitions.get(i).getLocation().centerY(), paints[RED]);
+                personColors[i] = RED;
                 colored_shapes.add("RED");
+            } else {
+                personColors[i] = NONE;
             }
 
             if (minJ >= 0){
@@ -111,6 +145,39 @@ public class DistanceTracker {
                     distancesList.add(distance);
             }
         }
+    }
+
+    // Draw the result of the last track() on a copy of currentFrame
+    public Bitmap render(Bitmap currentFrame){
+        Bitmap resultBitmap = currentFrame.copy(Bitmap.Config.ARGB_8888, true);
+        draw(new Canvas(resultBitmap));
+        return resultBitmap;
+    }
+
+    // Draw the result of the last track() on a transparent overlay, with the size of the frame
+    public Bitmap renderOverlay(Bitmap overlay){
+        overlay.eraseColor(Color.TRANSPARENT);
+        draw(new Canvas(overlay));
+        return overlay;
+    }
+
+    private void draw(Canvas canvas){
+
+        // Formatting distance between persons
+        DecimalFormat df = new DecimalFormat("##.##");
+        df.setRoundingMode(RoundingMode.DOWN);
+
+        // Draw shape
+        for (int i = 0; i < recognitions.size(); i++) {
+            if (personColors[i] == NONE) {
+                continue;
+            }
+            RectF location = recognitions.get(i).getLocation();
+            canvas.drawRect(location, paints[personColors[i]]);
+            if (!Float.isNaN(coordinates[i].w)) {
+                canvas.drawText(df.format(coordinates[i].w), location.centerX(), location.centerY(), paints[personColors[i]]);
+            }
+        }
 
         for (DistanceBetween d : distancesList) {
             if (d.location1.centerX() > d.location2.centerX()) {
@@ -141,13 +208,18 @@ public class DistanceTracker {
             }
 
         }
-        return resultBitmap;
     }
 
-    public void setDepthMap(FloatBuffer depthMap, float scaleFactor, float shiftFactor){
-        this.depthMap = depthMap;
+    public void setDepthField(DepthField depthField, float scaleFactor, float shiftFactor){
+        this.depthField = depthField;
         this.scaleFactor = scaleFactor;
         this.shiftFactor = shiftFactor;
+        isDepthStatisticsBuilt = false;
+    }
+
+    // How the distance of a person is read from the depth in the box, null for the mean of the torso
+    public void setBoxDepthEstimator(BoxDepthEstimator boxDepthEstimator){
+        this.boxDepthEstimator = boxDepthEstimator;
     }
 
     public void setCameraParameters(float fx_d, float fy_d, float cx_d, float cy_d){
@@ -162,16 +234,25 @@ public class DistanceTracker {
     private Float4[] get3dCoordinates(List<Detector.Recognition> mappedRecognitions){
         Float4[] result = new Float4[mappedRecognitions.size()];
 
-        width = 640;
-        height = 480;
+        float[] robustDistances = null;
+        if (boxDepthEstimator != null) {
+            List<RectF> boxes = new ArrayList<>(mappedRecognitions.size());
+            for (Detector.Recognition recognition : mappedRecognitions) {
+                boxes.add(recognition.getLocation());
+            }
+            robustDistances = boxDepthEstimator.estimate(depthField, scaleFactor, shiftFactor, boxes);
+        }
 
         for(int i=0; i<mappedRecognitions.size(); i++){
-            int u = (int) mappedRecognitions.get(i).getLocation().centerX();
-            int v = (int) mappedRecognitions.get(i).getLocation().centerY();
-
-            float depth = depthMap.get(v*width + u);  //disparity value, between [0,1]
-            depth = depth * scaleFactor + shiftFactor;
-            depth = 1 / depth;  //distance from the camera measured in meters
+            float u = mappedRecognitions.get(i).getLocation().centerX();
+            float v = mappedRecognitions.get(i).getLocation().centerY();
+
+            float depth;
+            if (robustDistances != null && !Float.isNaN(robustDistances[i])) {
+                depth = robustDistances[i];  //distance from the camera measured in meters
+            } else {
+                depth = 1 / getMeanDisparity(mappedRecognitions.get(i).getLocation(), u, v);
+            }
 
             float x_over_z = (cx_d - u) / fx_d;
             float y_over_z = (cy_d - v) / fy_d;
@@ -185,6 +266,90 @@ public class DistanceTracker {
         return result;
     }
 
+    // Mean disparity of the torso, of the whole box if the torso has no valid value
+    private float getMeanDisparity(RectF box, float u, float v){
+        if (!isDepthStatisticsBuilt) {
+            depthStatistics.build(depthField, scaleFactor, shiftFactor);
+            isDepthStatisticsBuilt = true;
+        }
+        float depth = depthStatistics.mean(
+                box.left + box.width() * TORSO_LEFT, box.top + box.height() * TORSO_TOP,
+                box.left + box.width() * TORSO_RIGHT, box.top + box.height() * TORSO_BOTTOM);
+        if (Float.isNaN(depth)) {
+            depth = depthStatistics.mean(box.left, box.top, box.right, box.bottom);
+        }
+        if (Float.isNaN(depth)) {
+            depth = depthField.sample(u, v) * scaleFactor + shiftFactor;
+        }
+        return depth;
+    }
+
+    // The feature points are moved in camera coordinates with the view matrix and projected with the
+    // intrinsics: the app is always used in landscape, where the camera of the view matrix is aligned
+    // to the image. For every person the median point by distance is taken, NaN if there is none.
+    private Float4[] getFeaturePointCoordinates(List<Detector.Recognition> mappedRecognitions, PointCloudSnapshot pointCloud, float[] viewMatrix){
+        Float4[] result = new Float4[mappedRecognitions.size()];
+
+        int numPoints = pointCloud.getNumPoints();
+        float[] pointsX = pointCloud.getX();
+        float[] pointsY = pointCloud.getY();
+        float[] pointsZ = pointCloud.getZ();
+        float[] m = viewMatrix;
+
+        // Image coordinates and camera coordinates of every point in front of the camera
+        float[] u = new float[numPoints];
+        float[] v = new float[numPoints];
+        float[][] cameraPoints = new float[numPoints][];
+        int numVisible = 0;
+        for (int i = 0; i < numPoints; i++) {
+            float x = m[0] * pointsX[i] + m[4] * pointsY[i] + m[8] * pointsZ[i] + m[12];
+            float y = m[1] * pointsX[i] + m[5] * pointsY[i] + m[9] * pointsZ[i] + m[13];
+            float z = m[2] * pointsX[i] + m[6] * pointsY[i] + m[10] * pointsZ[i] + m[14];
+            // OpenGL camera: the camera looks toward -z and y goes up
+            if (z >= 0) {
+                continue;
+            }
+            u[numVisible] = cx_d + fx_d * x / -z;
+            v[numVisible] = cy_d - fy_d * y / -z;
+            // Same convention of get3dCoordinates
+            cameraPoints[numVisible] = new float[]{-x, y, -z, (float) Math.sqrt(x * x + y * y + z * z)};
+            numVisible++;
+        }
+
+        List<float[]> inBox = new ArrayList<>();
+        for (int i = 0; i < mappedRecognitions.size(); i++) {
+            RectF location = mappedRecognitions.get(i).getLocation();
+            // Central half of the box, the borders contain mostly background
+            float left = location.centerX() - location.width() / 4;
+            float right = location.centerX() + location.width() / 4;
+            float top = location.centerY() - location.height() / 4;
+            float bottom = location.centerY() + location.height() / 4;
+
+            inBox.clear();
+            for (int j = 0; j < numVisible; j++) {
+                if (u[j] >= left && u[j] <= right && v[j] >= top && v[j] <= bottom) {
+                    inBox.add(cameraPoints[j]);
+                }
+            }
+
+            if (inBox.isEmpty()) {
+                result[i] = new Float4(Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+                continue;
+            }
+
+            Collections.sort(inBox, new Comparator<float[]>() {
+                @Override
+                public int compare(float[] p1, float[] p2) {
+                    return Float.compare(p1[3], p2[3]);
+                }
+            });
+            float[] median = inBox.get(inBox.size() / 2);
+            result[i] = new Float4(median[0], median[1], median[2], median[3]);
+        }
+
+        return result;
+    }
+
     private Float getDistanceBetweenPeople(Float4 p1, Float4 p2){
         return (float) Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2) + Math.pow(p1.z -p2.z, 2));
     }
@@ -192,6 +357,21 @@ public class DistanceTracker {
     public List<String> getColored_shapes() {
         return colored_shapes;
     }
+
+    // Distance in meters of every person of the last track() from the camera
+    public float[] getCameraDistances() {
+        float[] result = new float[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            result[i] = coordinates[i].w;
+        }
+        return result;
+    }
+
+    // Distance in meters of every person of the last track() from the closest one, Float.MAX_VALUE if
+    // the person is alone
+    public float[] getClosestDistances() {
+        return closestDistances;
+    }
 }
 
 class DistanceBetween {
@@ -14,6 +14,7 @@ import my.application.sda.model.TFLiteObjectDetectionModel;
 public class PersonDetection {
 
     private TFLiteObjectDetectionModel ODModel;
+    private boolean isModelOwned;
     private Bitmap croppedBitmap;
 
     private static final DetectorMode MODE = DetectorMode.TF_OD_API;
@@ -25,10 +26,33 @@ public class PersonDetection {
     }
 
     public void init (Context context, String modelFileName, int size) throws IOException {
+        close();
         ODModel = new TFLiteObjectDetectionModel(context, modelFileName);
+        isModelOwned = true;
         detSize = size;
     }
 
+    public void init (Context context, String modelFileName, int size, int numThreads) throws IOException {
+        close();
+        ODModel = new TFLiteObjectDetectionModel(context, modelFileName, numThreads);
+        isModelOwned = true;
+        detSize = size;
+    }
+
+    // Use a model loaded by someone else, like the ModelRegistry: it is not closed by close() or init()
+    public void setModel(TFLiteObjectDetectionModel model, int size) {
+        ODModel = model;
+        isModelOwned = false;
+        detSize = size;
+    }
+
+    public void close() {
+        if (ODModel != null && isModelOwned) {
+            ODModel.close();
+        }
+        ODModel = null;
+    }
+
 
     public List<Detector.Recognition> getRecognitionsTrackedFrom(Bitmap currentFrameBitmap, Matrix cropToFrameTransform){
 
@@ -5,6 +5,14 @@ import android.opengl.Matrix;
 
 public class CoordsUtils {
 
+    // projection * view of the batch worldToScreen(), one for each thread that projects the points
+    private static final ThreadLocal<float[]> viewProjectionMatrix = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[16];
+        }
+    };
+
     // Get x,y,z world coordinates from x,y screen coordinate and distance from camera
     public static float[] screenToWorld(int screenX, int screenY, float distance, int screenWidth, int screenHeight, float[] inverseViewProjectionMatrix){
 
@@ -40,11 +48,67 @@ public class CoordsUtils {
         return new Point(screenX, screenY);
     }
 
-    // Transform the screen coordinates into the depth image coordinate
-    public static android.graphics.Point getCoordsML(android.graphics.Point screenPoint, double scaleX, double scaleY) {
-        //Hp: the app is always used in landscape
-        return new android.graphics.Point((int) (screenPoint.x*scaleX), (int) (screenPoint.y*scaleY));
+    // Batch version of worldToScreen() for count points given as separate x, y, z arrays: projection * view is
+    // computed once, and the points behind the camera or outside [0,width)x[0,height) are skipped in the same
+    // loop. The pixels of the visible points are written in outX and outY, their index in outIndices.
+    // Returns the number of visible points.
+    public static int worldToScreen(float[] x, float[] y, float[] z, int count, int width, int height,
+                                    float[] projectionMatrix, float[] viewMatrix, int[] outX, int[] outY, int[] outIndices) {
+        float[] m = viewProjectionMatrix.get();
+        Matrix.multiplyMM(m, 0, projectionMatrix, 0, viewMatrix, 0);
+
+        int numVisible = 0;
+        for (int i = 0; i < count; i++) {
+            float clipW = m[3] * x[i] + m[7] * y[i] + m[11] * z[i] + m[15];
+            // Behind the camera
+            if (!(clipW > 0)) {
+                continue;
+            }
+            float clipX = m[0] * x[i] + m[4] * y[i] + m[8] * z[i] + m[12];
+            float clipY = m[1] * x[i] + m[5] * y[i] + m[9] * z[i] + m[13];
+
+            float screenX = (clipX / clipW + 1) * 0.5f * width;
+            float screenY = (1 - clipY / clipW) * 0.5f * height;
+            // false also for NaN
+            if (!(screenX >= 0 && screenX < width && screenY >= 0 && screenY < height)) {
+                continue;
+            }
+            outX[numVisible] = (int) screenX;
+            outY[numVisible] = (int) screenY;
+            outIndices[numVisible] = i;
+            numVisible++;
+        }
+        return numVisible;
     }
 
-
+    // Like the batch worldToScreen(), but the points are projected in the camera image with its intrinsics
+    // (fx, fy, cx, cy in pixels of a width x height image): the view matrix moves them in camera coordinates,
+    // where the camera looks toward -z and y goes up.
+    public static int worldToImage(float[] x, float[] y, float[] z, int count, int width, int height, float[] viewMatrix,
+                                   float fx, float fy, float cx, float cy, int[] outX, int[] outY, int[] outIndices) {
+        float[] m = viewMatrix;
+
+        int numVisible = 0;
+        for (int i = 0; i < count; i++) {
+            float cameraZ = m[2] * x[i] + m[6] * y[i] + m[10] * z[i] + m[14];
+            // Behind the camera
+            if (!(cameraZ < 0)) {
+                continue;
+            }
+            float cameraX = m[0] * x[i] + m[4] * y[i] + m[8] * z[i] + m[12];
+            float cameraY = m[1] * x[i] + m[5] * y[i] + m[9] * z[i] + m[13];
+
+            float imageX = cx + fx * cameraX / -cameraZ;
+            float imageY = cy - fy * cameraY / -cameraZ;
+            // false also for NaN
+            if (!(imageX >= 0 && imageX < width && imageY >= 0 && imageY < height)) {
+                continue;
+            }
+            outX[numVisible] = (int) imageX;
+            outY[numVisible] = (int) imageY;
+            outIndices[numVisible] = i;
+            numVisible++;
+        }
+        return numVisible;
+    }
 }
@@ -11,6 +11,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -139,6 +142,174 @@ public class ImageUtil {
         }
     }
 
+    /**
+     * Converts the planes of a YUV_420_888 image (e.g. {@link android.media.Image#getPlanes()}) to
+     * ARGB, reading the buffers in place instead of copying them to intermediate arrays.
+     *
+     * @param out Destination array, must hold at least width * height values. It can be reused
+     *     between calls.
+     */
+    public static void convertYUV420ToARGB8888(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out) {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            int pY = yRowStride * j;
+            int pUV = uvRowStride * (j >> 1);
+
+            for (int i = 0; i < width; i++) {
+                int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+                out[yp++] = YUV2RGB(0xff & yBuffer.get(pY + i), 0xff & uBuffer.get(uv_offset), 0xff & vBuffer.get(uv_offset));
+            }
+        }
+    }
+
+    /**
+     * Resizes the planes of a YUV_420_888 image with bilinear interpolation and writes the RGB values,
+     * divided by 255, in the float32 tensor out (height x width x 3), without intermediate images.
+     * The luma is interpolated, the chroma is taken from the closest sample.
+     *
+     * @param out Native-ordered buffer of at least dstWidth * dstHeight * 3 floats. It can be reused
+     *     between calls.
+     */
+    public static void resizeYUV420ToFloatRGB(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int dstWidth,
+            int dstHeight,
+            ByteBuffer out) {
+        FloatBuffer tensor = out.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        float scaleY = (float) height / dstHeight;
+        float normalization = 1f / 255f;
+
+        // Horizontal interpolation weights are the same for every row
+        BilinearColumns columns = getBilinearColumns(width, dstWidth);
+        int[] columns0 = columns.positions0;
+        int[] columns1 = columns.positions1;
+        float[] weights = columns.weights;
+
+        for (int j = 0; j < dstHeight; j++) {
+            float sy = clamp((j + 0.5f) * scaleY - 0.5f, 0, height - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            int pY0 = yRowStride * y0;
+            int pY1 = yRowStride * y1;
+            int pUV = uvRowStride * ((int) (sy + 0.5f) >> 1);
+
+            for (int i = 0; i < dstWidth; i++) {
+                int x0 = columns0[i];
+                int x1 = columns1[i];
+                float fx = weights[i];
+
+                float top = (0xff & yBuffer.get(pY0 + x0)) * (1 - fx) + (0xff & yBuffer.get(pY0 + x1)) * fx;
+                float bottom = (0xff & yBuffer.get(pY1 + x0)) * (1 - fx) + (0xff & yBuffer.get(pY1 + x1)) * fx;
+                int luma = (int) (top * (1 - fy) + bottom * fy + 0.5f);
+
+                int uv_offset = pUV + ((fx < 0.5f ? x0 : x1) >> 1) * uvPixelStride;
+                int rgb = YUV2RGB(luma, 0xff & uBuffer.get(uv_offset), 0xff & vBuffer.get(uv_offset));
+
+                tensor.put(((rgb >> 16) & 0xff) * normalization);
+                tensor.put(((rgb >> 8) & 0xff) * normalization);
+                tensor.put((rgb & 0xff) * normalization);
+            }
+        }
+    }
+
+    /**
+     * Resizes an ARGB image with bilinear interpolation and writes the RGB values, divided by 255, in
+     * the float32 tensor out (height x width x 3), like {@link #resizeYUV420ToFloatRGB}.
+     */
+    public static void resizeARGBToFloatRGB(int[] argb, int width, int height, int dstWidth, int dstHeight, ByteBuffer out) {
+        FloatBuffer tensor = out.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        float scaleY = (float) height / dstHeight;
+        float normalization = 1f / 255f;
+
+        BilinearColumns columns = getBilinearColumns(width, dstWidth);
+        int[] columns0 = columns.positions0;
+        int[] columns1 = columns.positions1;
+        float[] weights = columns.weights;
+
+        for (int j = 0; j < dstHeight; j++) {
+            float sy = clamp((j + 0.5f) * scaleY - 0.5f, 0, height - 1);
+            int row0 = width * (int) sy;
+            int row1 = width * Math.min((int) sy + 1, height - 1);
+            float fy = sy - (int) sy;
+
+            for (int i = 0; i < dstWidth; i++) {
+                int p00 = argb[row0 + columns0[i]];
+                int p01 = argb[row0 + columns1[i]];
+                int p10 = argb[row1 + columns0[i]];
+                int p11 = argb[row1 + columns1[i]];
+                float fx = weights[i];
+
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    float top = ((p00 >> shift) & 0xff) * (1 - fx) + ((p01 >> shift) & 0xff) * fx;
+                    float bottom = ((p10 >> shift) & 0xff) * (1 - fx) + ((p11 >> shift) & 0xff) * fx;
+                    tensor.put((top * (1 - fy) + bottom * fy) * normalization);
+                }
+            }
+        }
+    }
+
+    // Columns and weights of the last resize, computed again only when the widths change. Never modified
+    // once published, so the threads can share them.
+    private static volatile BilinearColumns lastColumns;
+
+    private static class BilinearColumns {
+        final int srcWidth;
+        final int dstWidth;
+        final int[] positions0;
+        final int[] positions1;
+        final float[] weights;
+
+        BilinearColumns(int srcWidth, int dstWidth) {
+            this.srcWidth = srcWidth;
+            this.dstWidth = dstWidth;
+            positions0 = new int[dstWidth];
+            positions1 = new int[dstWidth];
+            weights = new float[dstWidth];
+            computeBilinearWeights((float) srcWidth / dstWidth, srcWidth, positions0, positions1, weights);
+        }
+    }
+
+    private static BilinearColumns getBilinearColumns(int srcWidth, int dstWidth) {
+        BilinearColumns columns = lastColumns;
+        if (columns == null || columns.srcWidth != srcWidth || columns.dstWidth != dstWidth) {
+            columns = new BilinearColumns(srcWidth, dstWidth);
+            lastColumns = columns;
+        }
+        return columns;
+    }
+
+    // Pixel centers of source and destination are aligned, like Bitmap.createScaledBitmap
+    private static void computeBilinearWeights(float scale, int srcSize, int[] positions0, int[] positions1, float[] weights) {
+        for (int i = 0; i < weights.length; i++) {
+            float position = clamp((i + 0.5f) * scale - 0.5f, 0, srcSize - 1);
+            positions0[i] = (int) position;
+            positions1[i] = Math.min(positions0[i] + 1, srcSize - 1);
+            weights[i] = position - positions0[i];
+        }
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
     /**
      * Returns a transformation matrix from one reference frame into another. Handles cropping (if
      * maintaining aspect ratio is desired) and rotation.
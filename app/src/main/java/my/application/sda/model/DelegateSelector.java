@@ -0,0 +1,306 @@
+package my.application.sda.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.CompatibilityList;
+import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.nnapi.NnApiDelegate;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// Chooses how a TFLite model is executed on this device. Every backend available is timed on a short
+// warm-up and the fastest one whose output matches the reference within the tolerance is kept. The
+// reference is the output of the plain CPU interpreter.
+// The choice is saved per model file and device, so the benchmark runs only the first time. The saved
+// backend is still compared with the reference at every open(): a driver can break without a system
+// update.
+public class DelegateSelector {
+
+    private static final String TAG = "DelegateSelector";
+
+    public enum Backend {
+        // Interpreter without delegates, with all the threads of the budget
+        CPU(0),
+        GPU(0),
+        NNAPI(0),
+        XNNPACK_1(1),
+        XNNPACK_2(2),
+        XNNPACK_4(4),
+        XNNPACK_8(8);
+
+        // CPU threads, 0 for the delegates
+        public final int numThreads;
+
+        Backend(int numThreads) {
+            this.numThreads = numThreads;
+        }
+    }
+
+    // Runs the model once on a representative input and returns its output as floats
+    public interface Inference {
+        FloatBuffer run(Interpreter interpreter);
+    }
+
+    // Interpreter together with the delegate it uses: the delegate must be closed after the interpreter
+    public static class Instance {
+        private final Backend backend;
+        private final Interpreter interpreter;
+        private final GpuDelegate gpuDelegate;
+        private final NnApiDelegate nnApiDelegate;
+
+        private Instance(Backend backend, Interpreter interpreter, GpuDelegate gpuDelegate, NnApiDelegate nnApiDelegate) {
+            this.backend = backend;
+            this.interpreter = interpreter;
+            this.gpuDelegate = gpuDelegate;
+            this.nnApiDelegate = nnApiDelegate;
+        }
+
+        public Backend getBackend() {
+            return backend;
+        }
+
+        public Interpreter getInterpreter() {
+            return interpreter;
+        }
+
+        public void close() {
+            if (interpreter != null) {
+                interpreter.close();
+            }
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
+            if (nnApiDelegate != null) {
+                nnApiDelegate.close();
+            }
+        }
+    }
+
+    private static final String PREFERENCES = "delegates";
+    private static final int WARMUP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+
+    private final SharedPreferences preferences;
+    private final String key;
+    private final int maxThreads;
+    // Maximum mean absolute difference from the reference, relative to the range of the reference
+    private final float tolerance;
+
+    // maxThreads is the CPU budget of the model: XNNPACK configurations with more threads are not tried
+    public DelegateSelector(Context context, String modelName, int maxThreads, float tolerance) {
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        // The fingerprint changes with the system updates, that can also change the drivers
+        this.key = modelName + "@" + Build.FINGERPRINT + "/" + maxThreads;
+        this.maxThreads = Math.max(1, Math.min(maxThreads, Runtime.getRuntime().availableProcessors()));
+        this.tolerance = tolerance;
+    }
+
+    // Open the model with the saved backend if its output still matches the reference, otherwise with
+    // the fastest one
+    public Instance open(ByteBuffer model, Inference inference) {
+        String saved = preferences.getString(key, null);
+        Backend savedBackend = null;
+        if (saved != null) {
+            try {
+                savedBackend = Backend.valueOf(saved);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown saved backend " + saved, e);
+            }
+        }
+
+        // The CPU interpreter is the reference: nothing to check
+        if (savedBackend == Backend.CPU) {
+            return create(model, Backend.CPU);
+        }
+
+        float[] reference = computeReference(model, inference);
+        if (savedBackend != null) {
+            Instance instance = null;
+            try {
+                instance = create(model, savedBackend);
+                if (matches(reference, inference.run(instance.getInterpreter()))) {
+                    return instance;
+                }
+                Log.w(TAG, savedBackend + " doesn't match the reference anymore");
+            } catch (Exception e) {
+                Log.w(TAG, "Saved backend " + savedBackend + " failed", e);
+            }
+            // Run the benchmark again
+            if (instance != null) {
+                instance.close();
+            }
+        }
+
+        Instance best = select(model, inference, reference);
+        preferences.edit().putString(key, best.getBackend().name()).apply();
+        return best;
+    }
+
+    // Output of the plain CPU interpreter
+    private float[] computeReference(ByteBuffer model, Inference inference) {
+        Instance cpu = create(model, Backend.CPU);
+        try {
+            FloatBuffer output = inference.run(cpu.getInterpreter());
+            float[] reference = new float[output.remaining()];
+            output.get(reference);
+            return reference;
+        } finally {
+            cpu.close();
+        }
+    }
+
+    private Instance select(ByteBuffer model, Inference inference, float[] reference) {
+        Instance best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (Backend backend : Backend.values()) {
+            if (!isAvailable(backend)) {
+                continue;
+            }
+
+            Instance candidate;
+            try {
+                candidate = create(model, backend);
+            } catch (Exception e) {
+                Log.w(TAG, backend + " not available", e);
+                continue;
+            }
+
+            long nanos;
+            try {
+                nanos = time(candidate, inference, bestNanos);
+                if (nanos < bestNanos && !matches(reference, inference.run(candidate.getInterpreter()))) {
+                    nanos = Long.MAX_VALUE;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, backend + " failed", e);
+                nanos = Long.MAX_VALUE;
+            }
+
+            if (nanos < bestNanos) {
+                if (best != null) {
+                    best.close();
+                }
+                best = candidate;
+                bestNanos = nanos;
+            } else {
+                candidate.close();
+            }
+        }
+
+        if (best == null) {
+            // Every run failed the comparison, keep the reference configuration
+            best = create(model, Backend.CPU);
+        }
+        return best;
+    }
+
+    private boolean isAvailable(Backend backend) {
+        switch (backend) {
+            case GPU:
+                CompatibilityList compatList = new CompatibilityList();
+                boolean supported = compatList.isDelegateSupportedOnThisDevice();
+                compatList.close();
+                return supported;
+            case NNAPI:
+                // The NNAPI delegate needs Android 8.1
+                return Build.VERSION.SDK_INT >= 27;
+            case CPU:
+                return true;
+            default:
+                return backend.numThreads <= maxThreads;
+        }
+    }
+
+    private Instance create(ByteBuffer model, Backend backend) {
+        Interpreter.Options options = new Interpreter.Options();
+        GpuDelegate gpuDelegate = null;
+        NnApiDelegate nnApiDelegate = null;
+
+        switch (backend) {
+            case GPU:
+                CompatibilityList compatList = new CompatibilityList();
+                gpuDelegate = new GpuDelegate(compatList.getBestOptionsForThisDevice());
+                compatList.close();
+                options.addDelegate(gpuDelegate);
+                break;
+            case NNAPI:
+                nnApiDelegate = new NnApiDelegate();
+                options.addDelegate(nnApiDelegate);
+                break;
+            case CPU:
+                options.setNumThreads(maxThreads);
+                break;
+            default:
+                options.setUseXNNPACK(true);
+                options.setNumThreads(backend.numThreads);
+                break;
+        }
+
+        try {
+            return new Instance(backend, new Interpreter(model, options), gpuDelegate, nnApiDelegate);
+        } catch (RuntimeException e) {
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
+            if (nnApiDelegate != null) {
+                nnApiDelegate.close();
+            }
+            throw e;
+        }
+    }
+
+    // Median time of the timed runs. The timing stops as soon as a run takes more than twice the best
+    // time found so far, the slow configurations are not worth the wait.
+    private long time(Instance instance, Inference inference, long bestNanos) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            inference.run(instance.getInterpreter());
+        }
+
+        long[] nanos = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            inference.run(instance.getInterpreter());
+            nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (bestNanos != Long.MAX_VALUE && nanos[i] > 2 * bestNanos) {
+                return Long.MAX_VALUE;
+            }
+        }
+
+        Arrays.sort(nanos);
+        return nanos[TIMED_RUNS / 2];
+    }
+
+    private boolean matches(float[] expected, FloatBuffer actual) {
+        if (actual.remaining() != expected.length) {
+            return false;
+        }
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float value : expected) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        float range = max > min ? max - min : 1f;
+
+        int offset = actual.position();
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            float difference = Math.abs(actual.get(offset + i) - expected[i]);
+            // false also for NaN
+            if (!(difference <= range)) {
+                return false;
+            }
+            sum += difference;
+        }
+        return sum / expected.length <= tolerance * range;
+    }
+}
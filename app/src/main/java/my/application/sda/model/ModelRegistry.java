@@ -0,0 +1,184 @@
+package my.application.sda.model;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+
+// Models shared by the whole process. They are loaded and warmed up on a background thread, so that the
+// first capture does not pay for the loading and the compilation of the delegates, and they survive the
+// recreation of the activity. A model is loaded again only when its file or its threads change, or after
+// it was released because the system is low on memory.
+// The instances are handed out through futures: a caller that needs the model right away waits on get().
+// The GPU delegate must be created, run and closed on the same thread, so the depth model lives on the
+// depth thread of the registry: the code that runs it is executed by getDepthExecutor().
+public class ModelRegistry implements ComponentCallbacks2 {
+
+    // PyDNet float32, the other variants are compared with it by DepthVariantBenchmark
+    public static final String DEPTH_MODEL_FILE = "tflite_pydnet.tflite";
+
+    private static ModelRegistry instance;
+
+    private final Context context;
+    private final ExecutorService loader;
+    private final ExecutorService depthExecutor;
+    private volatile Thread depthThread;
+
+    private RunnableFuture<TFLiteDepthModel> depthModel;
+    private int depthThreads;
+
+    private Future<TFLiteObjectDetectionModel> detectionModel;
+    private String detectionFile;
+    private int detectionThreads;
+
+    private ModelRegistry(Context context) {
+        this.context = context;
+        this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "sda-models");
+            }
+        });
+        this.depthExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                depthThread = new Thread(runnable, "sda-depth");
+                return depthThread;
+            }
+        });
+    }
+
+    public static synchronized ModelRegistry getInstance(Context context) {
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new ModelRegistry(applicationContext);
+            applicationContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    // Single thread of the depth model: its inferences must run here
+    public Executor getDepthExecutor() {
+        return depthExecutor;
+    }
+
+    // PyDNet with at most numThreads CPU threads
+    public synchronized Future<TFLiteDepthModel> getDepthModel(final int numThreads) {
+        if (depthModel != null && depthThreads == numThreads) {
+            return depthModel;
+        }
+
+        close(depthModel, depthExecutor);
+        depthThreads = numThreads;
+        depthModel = new FutureTask<>(new Callable<TFLiteDepthModel>() {
+            @Override
+            public TFLiteDepthModel call() throws Exception {
+                TFLiteDepthModel model = new TFLiteDepthModel(DEPTH_MODEL_FILE);
+                model.init(context, numThreads);
+                model.warmUp();
+                return model;
+            }
+        });
+        depthExecutor.execute(depthModel);
+        return depthModel;
+    }
+
+    // Like getDepthModel(), for the code running on the depth executor: if the model was released it is
+    // loaded right away, instead of waiting behind the caller in the queue of the executor
+    public TFLiteDepthModel getDepthModelNow(int numThreads) throws InterruptedException, ExecutionException {
+        if (Thread.currentThread() != depthThread) {
+            throw new IllegalStateException("Not on the depth thread");
+        }
+        RunnableFuture<TFLiteDepthModel> model;
+        synchronized (this) {
+            getDepthModel(numThreads);
+            model = depthModel;
+        }
+        // Nothing to do if it's already loaded
+        model.run();
+        return model.get();
+    }
+
+    // EfficientDet variant in modelFileName, with input images of inputSize x inputSize. The model is
+    // loaded only if the variant changed: the previous one is closed.
+    public synchronized Future<TFLiteObjectDetectionModel> getDetectionModel(final String modelFileName, final int inputSize, final int numThreads) {
+        if (detectionModel != null && modelFileName.equals(detectionFile) && detectionThreads == numThreads) {
+            return detectionModel;
+        }
+
+        close(detectionModel, loader);
+        detectionFile = modelFileName;
+        detectionThreads = numThreads;
+        detectionModel = loader.submit(new Callable<TFLiteObjectDetectionModel>() {
+            @Override
+            public TFLiteObjectDetectionModel call() throws Exception {
+                TFLiteObjectDetectionModel model = new TFLiteObjectDetectionModel(context, modelFileName, numThreads);
+                // The first inference is slower, run it before the first capture
+                model.recognizeImage(Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888));
+                return model;
+            }
+        });
+        return detectionModel;
+    }
+
+    // Close all the models: they are loaded again when they are requested
+    public synchronized void release() {
+        close(depthModel, depthExecutor);
+        depthModel = null;
+        close(detectionModel, loader);
+        detectionModel = null;
+        detectionFile = null;
+    }
+
+    // Closed on the thread that loaded it, after the model is loaded
+    private void close(final Future<?> model, Executor executor) {
+        if (model == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Object loaded;
+                try {
+                    loaded = model.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing to close
+                    return;
+                }
+                if (loaded instanceof TFLiteDepthModel) {
+                    ((TFLiteDepthModel) loaded).close();
+                } else if (loaded instanceof TFLiteObjectDetectionModel) {
+                    ((TFLiteObjectDetectionModel) loaded).close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // The models are needed while the app is visible, they are released when the app is in the
+        // background and the system is looking for memory
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            release();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        release();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -4,70 +4,246 @@ import android.content.Context;
 
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.CompatibilityList;
-import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.support.common.FileUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+// PyDNet and its variants. The sizes and the types of the tensors are read from the model, so the same
+// wrapper runs float32, float16 and quantized models at any input resolution: the input is always
+// written as RGB floats in [0,1] and the output is always read as floats.
 public class TFLiteDepthModel {
 
+    // Maximum mean difference of a backend from the CPU output, relative to its range
+    private static final float BACKEND_TOLERANCE = 0.02f;
+
+    private DelegateSelector.Instance instance;
     private Interpreter interpreter;
     private String mlName;
-    final public int depthWidth = 640;
-    final public int depthHeight = 384;
 
+    // Size of the input, set by init()
+    public int depthWidth;
+    public int depthHeight;
+    // Size of the output, set by init()
+    public int outputWidth;
+    public int outputHeight;
+
+    private int inputIndex;
+    private DataType inputType;
+    private DataType outputType;
+    private float inputScale;
+    private int inputZeroPoint;
+    private float outputScale;
+    private int outputZeroPoint;
+
+    // Tensors in the type of the model
+    private ByteBuffer modelInput;
+    private ByteBuffer modelOutput;
+
+    // RGB input, height x width x 3 floats, reused between the inferences. Same buffer as modelInput
+    // for float models.
+    private ByteBuffer input;
+    // Output as floats, same buffer as modelOutput for float models
     private ByteBuffer inference;
 
     public TFLiteDepthModel(String mlName){
         this.mlName = mlName;
+    }
+
+    public String getName() {
+        return mlName;
+    }
+
+    // Buffer to fill before calling doInference()
+    public ByteBuffer getInput() {
+        return input;
+    }
 
-        inference = ByteBuffer.allocateDirect(depthWidth*depthHeight* DataType.FLOAT32.byteSize());
-        inference.order(ByteOrder.nativeOrder());
+    public ByteBuffer doInference(){
+        input.rewind();
+        return doInference(input);
+    }
+
+    // Run the model once, the first inference on the GPU is much slower than the next ones
+    public void warmUp(){
+        fillBenchmarkInput(input);
+        doInference();
     }
 
     public void init(Context context) throws IOException {
-        Interpreter.Options tfliteOptions = (new Interpreter.Options());
-        CompatibilityList compatList = new CompatibilityList();
-
-        if(compatList.isDelegateSupportedOnThisDevice()){
-            // if the device has a supported GPU, add the GPU delegate
-            GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
-            GpuDelegate gpuDelegate = new GpuDelegate(delegateOptions);
-            tfliteOptions.addDelegate(gpuDelegate);
-        } else {
-            // if the GPU is not supported, run on 4 threads
-            tfliteOptions.setNumThreads(4);
-        }
-        
+        init(context, 4);
+    }
+
+    // Use the fastest backend of the device with at most numThreads CPU threads: the first time, the
+    // configurations are compared on a synthetic image
+    public void init(Context context, int numThreads) throws IOException {
+        close();
+
         MappedByteBuffer tfliteModel = null;
         tfliteModel = FileUtil.loadMappedFile(context, mlName);
 
-        // create tflite interpreter
-        interpreter = new Interpreter(tfliteModel, tfliteOptions);
+        // The tensors are the same for every backend
+        Interpreter probe = new Interpreter(tfliteModel, new Interpreter.Options());
+        try {
+            readTensors(probe);
+        } finally {
+            probe.close();
+        }
+
+        fillBenchmarkInput(input);
+        DelegateSelector selector = new DelegateSelector(context, mlName, numThreads, BACKEND_TOLERANCE);
+        instance = selector.open(tfliteModel, new DelegateSelector.Inference() {
+            @Override
+            public FloatBuffer run(Interpreter interpreter) {
+                input.rewind();
+                runInference(interpreter, input);
+                return inference.asFloatBuffer();
+            }
+        });
+        interpreter = instance.getInterpreter();
     }
 
-    public ByteBuffer doInference(ByteBuffer input){
-        inference.rewind();
+    public DelegateSelector.Backend getBackend() {
+        return instance != null ? instance.getBackend() : null;
+    }
+
+    // Release the interpreter and its delegate. Like init() and the inferences, it must run on the thread
+    // that created the model: the GPU delegate is bound to it.
+    public synchronized void close() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+            interpreter = null;
+        }
+    }
+
+    // input holds depthHeight x depthWidth x 3 floats, the result outputHeight x outputWidth floats
+    public synchronized ByteBuffer doInference(ByteBuffer input){
+        if (interpreter == null) {
+            throw new IllegalStateException("Depth model not loaded");
+        }
+        runInference(interpreter, input);
+        return inference;
+    }
+
+    private void readTensors(Interpreter interpreter){
+        try {
+            inputIndex = interpreter.getInputIndex("im0");
+        } catch (IllegalArgumentException e) {
+            // Variant exported with a different name
+            inputIndex = 0;
+        }
+
+        // NHWC input, NHW or NHWC output with a single channel
+        Tensor inputTensor = interpreter.getInputTensor(inputIndex);
+        int[] inputShape = inputTensor.shape();
+        depthHeight = inputShape[1];
+        depthWidth = inputShape[2];
+        inputType = inputTensor.dataType();
+        inputScale = inputTensor.quantizationParams().getScale();
+        inputZeroPoint = inputTensor.quantizationParams().getZeroPoint();
+
+        Tensor outputTensor = interpreter.getOutputTensor(0);
+        int[] outputShape = outputTensor.shape();
+        outputHeight = outputShape[1];
+        outputWidth = outputShape[2];
+        outputType = outputTensor.dataType();
+        outputScale = outputTensor.quantizationParams().getScale();
+        outputZeroPoint = outputTensor.quantizationParams().getZeroPoint();
+
+        modelInput = ByteBuffer.allocateDirect(inputTensor.numBytes());
+        modelInput.order(ByteOrder.nativeOrder());
+        modelOutput = ByteBuffer.allocateDirect(outputTensor.numBytes());
+        modelOutput.order(ByteOrder.nativeOrder());
+
+        if (inputType == DataType.FLOAT32) {
+            input = modelInput;
+        } else {
+            input = ByteBuffer.allocateDirect(depthWidth*depthHeight*3* DataType.FLOAT32.byteSize());
+            input.order(ByteOrder.nativeOrder());
+        }
+        if (outputType == DataType.FLOAT32) {
+            inference = modelOutput;
+        } else {
+            inference = ByteBuffer.allocateDirect(outputWidth*outputHeight* DataType.FLOAT32.byteSize());
+            inference.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void runInference(Interpreter interpreter, ByteBuffer input){
+        if (modelInput != input) {
+            quantize(input, modelInput);
+        }
+        modelOutput.rewind();
 
         Object[] inputArray = new Object[interpreter.getInputTensorCount()];
-        int iIndex = interpreter.getInputIndex("im0");
-        inputArray[interpreter.getInputIndex("im0")] = input;
+        inputArray[inputIndex] = modelInput;
 
         Map<Integer, Object> outputMap = new HashMap<>();
         //int oIndex = interpreter.getOutputIndex("decoder/half/resize/ResizeBilinear");
-        outputMap.put(0, inference);
+        outputMap.put(0, modelOutput);
 
         interpreter.runForMultipleInputsOutputs(inputArray, outputMap);
 
+        modelOutput.rewind();
+        if (modelOutput != inference) {
+            dequantize(modelOutput, inference);
+        }
         inference.rewind();
+    }
 
-        return inference;
+    // Floats in [0,1] to the 8 bit input of a quantized model. Without quantization parameters the model
+    // takes the pixels in [0,255].
+    private void quantize(ByteBuffer input, ByteBuffer modelInput){
+        FloatBuffer values = input.asFloatBuffer();
+        int length = depthWidth*depthHeight*3;
+        float scale = inputScale > 0 ? 1f / inputScale : 255f;
+        int zeroPoint = inputScale > 0 ? inputZeroPoint : 0;
+        int min = inputType == DataType.INT8 ? -128 : 0;
+        int max = inputType == DataType.INT8 ? 127 : 255;
+
+        modelInput.rewind();
+        for (int i = 0; i < length; i++) {
+            int q = Math.round(values.get(i) * scale) + zeroPoint;
+            modelInput.put((byte) Math.max(min, Math.min(max, q)));
+        }
+        modelInput.rewind();
+    }
+
+    // 8 bit output of a quantized model to floats. The scale doesn't matter for the normalized disparity,
+    // but the order of the values does: int8 and uint8 are read with their sign.
+    private void dequantize(ByteBuffer modelOutput, ByteBuffer inference){
+        FloatBuffer values = inference.asFloatBuffer();
+        int length = outputWidth*outputHeight;
+        float scale = outputScale > 0 ? outputScale : 1f;
+        boolean isSigned = outputType == DataType.INT8;
+
+        for (int i = 0; i < length; i++) {
+            byte q = modelOutput.get(i);
+            int value = isSigned ? q : q & 0xff;
+            values.put(i, (value - outputZeroPoint) * scale);
+        }
+    }
+
+    // Smooth gradients with some texture, so that the output is not flat and the comparison of the
+    // backends is meaningful
+    private void fillBenchmarkInput(ByteBuffer buffer){
+        FloatBuffer values = buffer.asFloatBuffer();
+        for (int y = 0; y < depthHeight; y++) {
+            for (int x = 0; x < depthWidth; x++) {
+                float base = 0.5f * y / depthHeight + 0.25f * (float) Math.sin(x * 0.05) * (float) Math.cos(y * 0.07);
+                values.put(0.25f + base);
+                values.put(0.25f + base * 0.8f);
+                values.put(0.25f + base * 0.6f);
+            }
+        }
+        buffer.rewind();
     }
 
 }
@@ -50,13 +50,21 @@ public class TFLiteObjectDetectionModel{
     /** Builder of the options used to config the ObjectDetector. */
     private final ObjectDetectorOptions.Builder optionsBuilder;
 
+    // The number of threads is chosen by the runtime, -1 is the default of ObjectDetectorOptions
     public TFLiteObjectDetectionModel(Context context, String modelFilename) throws IOException {
+        this(context, modelFilename, -1);
+    }
+
+    public TFLiteObjectDetectionModel(Context context, String modelFilename, int numThreads) throws IOException {
         modelBuffer = FileUtil.loadMappedFile(context, modelFilename);
-        optionsBuilder = ObjectDetectorOptions.builder().setMaxResults(NUM_DETECTIONS);
+        optionsBuilder = ObjectDetectorOptions.builder().setMaxResults(NUM_DETECTIONS).setNumThreads(numThreads);
         objectDetector = ObjectDetector.createFromBufferAndOptions(modelBuffer, optionsBuilder.build());
     }
 
-    public List<Detector.Recognition> recognizeImage(final Bitmap bitmap) {
+    public synchronized List<Detector.Recognition> recognizeImage(final Bitmap bitmap) {
+        if (objectDetector == null) {
+            throw new IllegalStateException("Object detection model closed");
+        }
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("recognizeImage");
         List<Detection> results = objectDetector.detect(TensorImage.fromBitmap(bitmap));
@@ -85,9 +93,10 @@ public class TFLiteObjectDetectionModel{
         return "";
     }
 
-    public void close() {
+    public synchronized void close() {
         if (objectDetector != null) {
             objectDetector.close();
+            objectDetector = null;
         }
     }
 
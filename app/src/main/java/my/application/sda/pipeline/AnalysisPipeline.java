@@ -0,0 +1,683 @@
+package my.application.sda.pipeline;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.ar.core.TrackingState;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import my.application.sda.calibrator.CalibrationSamples;
+import my.application.sda.calibrator.DepthCalibrator;
+import my.application.sda.calibrator.DepthColormap;
+import my.application.sda.calibrator.DepthField;
+import my.application.sda.calibrator.DepthFusion;
+import my.application.sda.calibrator.FrameContainer;
+import my.application.sda.calibrator.FrameRing;
+import my.application.sda.detector.BoxDepthEstimator;
+import my.application.sda.detector.Detector;
+import my.application.sda.detector.DistanceTracker;
+import my.application.sda.detector.PersonDetection;
+import my.application.sda.helpers.ImageUtil;
+import my.application.sda.helpers.Logger;
+import my.application.sda.model.ModelRegistry;
+import my.application.sda.model.TFLiteDepthModel;
+import my.application.sda.model.TFLiteObjectDetectionModel;
+
+// Analysis of the captured frames off the UI thread:
+// capture -> (preprocess -> depth -> calibrate | detect) -> track -> render -> persist
+// The stages run on three single-thread executors (depth, detection, output), so each model is
+// confined to one thread. The depth executor belongs to the ModelRegistry, that loads and closes the
+// depth model on the same thread. Depth and detection are independent and run at the same time on
+// the same frame, the tracking starts when both are done; meanwhile the next capture can enter the
+// pipeline.
+// In detect-first mode the detection runs alone first: depth and calibration run only if there are
+// at least two people, otherwise the distance from the camera is estimated from the feature points.
+// At most MAX_PENDING_TASKS captures are in the pipeline: submit() rejects the others. Progress and
+// results are delivered to the Callback on the main thread.
+public class AnalysisPipeline {
+
+    public enum Stage {
+        CAPTURE, PREPROCESS, DEPTH, CALIBRATE, FUSE, DETECT, TRACK, RENDER, PERSIST
+    }
+
+    public interface Callback {
+        void onProgress(AnalysisTask task, Stage stage);
+
+        void onResult(AnalysisTask task, AnalysisResult result);
+
+        void onCancelled(AnalysisTask task);
+
+        void onError(AnalysisTask task, Exception e);
+    }
+
+    // Maximum number of captures in the pipeline
+    private static final int MAX_PENDING_TASKS = 3;
+
+    // Object Detection variables
+    private static final boolean MAINTAIN_ASPECT = false;
+    private static final int SENSOR_ORIENTATION = 0;
+
+    private final Context context;
+    private final Logger logger;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int depthThreads;
+    private final int detectThreads;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean isClosed = false;
+    private volatile boolean isDetectFirst = false;
+
+    // Copies of the captured frames, one for each pending task
+    private final BlockingQueue<FrameContainer> framePool = new ArrayBlockingQueue<>(MAX_PENDING_TASKS);
+
+    private final Executor depthExecutor;
+    private final ExecutorService detectExecutor;
+    private final ExecutorService outputExecutor;
+
+    // Used only by depthExecutor, except for recycling the depth fields
+    private volatile DepthCalibrator depthCalibrator;
+
+    // Used only by depthExecutor, except for recycling the fused fields
+    private volatile DepthFusion depthFusion;
+
+    // Used only by detectExecutor
+    private final PersonDetection personDetection = new PersonDetection();
+    private Matrix cropToFrameTransform;
+
+    // Models loaded by the registry, the detection one is chosen by setPersonDetection()
+    private final ModelRegistry modelRegistry;
+    private Future<TFLiteObjectDetectionModel> detectionModel;
+    private int detectionInputSize;
+
+    // Used only by outputExecutor
+    private final DistanceTracker distanceTracker = new DistanceTracker();
+    private int[] depthPixels;
+    private Bitmap depthBitmap;
+    // Applied to distanceTracker at every capture, null for the mean of the torso
+    private volatile BoxDepthEstimator boxDepthEstimator = BoxDepthEstimator.createDefault();
+
+    // Colormap of the saved depth images, null to not save them
+    private volatile DepthColormap depthColormap = DepthColormap.GRAY;
+
+    public AnalysisPipeline(Context context, Logger logger, int imageWidth, int imageHeight) {
+        this(context, logger, imageWidth, imageHeight, defaultDepthThreads(), defaultDetectThreads());
+    }
+
+    // depthThreads and detectThreads are the CPU threads of the two interpreters: since they run
+    // concurrently, their sum should not exceed the cores available to the app
+    public AnalysisPipeline(Context context, Logger logger, int imageWidth, int imageHeight, int depthThreads, int detectThreads) {
+        this.depthThreads = depthThreads;
+        this.detectThreads = detectThreads;
+        this.context = context.getApplicationContext();
+        this.logger = logger;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+
+        for (int i = 0; i < MAX_PENDING_TASKS; i++) {
+            framePool.add(new FrameContainer());
+        }
+
+        // Load and warm up the depth model before the first capture
+        modelRegistry = ModelRegistry.getInstance(context);
+        modelRegistry.getDepthModel(depthThreads);
+
+        depthExecutor = modelRegistry.getDepthExecutor();
+        detectExecutor = newStageExecutor("sda-detect");
+        outputExecutor = newStageExecutor("sda-output");
+    }
+
+    // Start loading the object detection model in the background, unless it's the one already loaded.
+    // The captures already in the pipeline use the new model once it is loaded.
+    public synchronized void setPersonDetection(String modelFileName, int inputSize) {
+        detectionModel = modelRegistry.getDetectionModel(modelFileName, inputSize, detectThreads);
+        detectionInputSize = inputSize;
+    }
+
+    // Only GRAY images can be used by 3dSceneRecostruction.py
+    public void setDepthColormap(DepthColormap depthColormap) {
+        this.depthColormap = depthColormap;
+    }
+
+    // Detect-first mode skips the depth inference when no distance between people can be measured
+    public void setDetectFirst(boolean isDetectFirst) {
+        this.isDetectFirst = isDetectFirst;
+    }
+
+    // Percentile of the depth in the boxes used as distance of the people, null for the mean of the torso
+    public void setBoxDepthEstimator(BoxDepthEstimator boxDepthEstimator) {
+        this.boxDepthEstimator = boxDepthEstimator;
+    }
+
+    // Capture stage: copy the best of the recent frames, so the slot of the ring is released
+    // immediately. Return null if the pipeline is full or no frame is available.
+    public AnalysisTask submit(FrameRing frameRing, Callback callback) {
+        return submit(frameRing, null, callback);
+    }
+
+    // Live analysis of the newest frame: the result is drawn on overlay, a transparent bitmap with the
+    // size of the frame, and nothing is saved
+    public AnalysisTask submitLive(FrameRing frameRing, Bitmap overlay, Callback callback) {
+        return submit(frameRing, overlay, callback);
+    }
+
+    private AnalysisTask submit(FrameRing frameRing, Bitmap overlay, Callback callback) {
+        if (isClosed) {
+            return null;
+        }
+
+        FrameContainer frame = framePool.poll();
+        if (frame == null) {
+            return null;
+        }
+
+        boolean isLive = overlay != null;
+        FrameContainer source = isLive ? frameRing.acquireLatest() : frameRing.acquireBestFrame();
+        if (source == null) {
+            framePool.offer(frame);
+            return null;
+        }
+        try {
+            frame.copyFrom(source);
+        } finally {
+            frameRing.release(source);
+        }
+
+        AnalysisTask task = new AnalysisTask(frame, overlay, callback);
+        notifyProgress(task, Stage.CAPTURE);
+
+        if (isDetectFirst) {
+            execute(detectExecutor, task, new StageWork() {
+                @Override
+                public void run(AnalysisTask task) {
+                    runDetectFirst(task);
+                }
+            });
+            return task;
+        }
+
+        executeBranch(depthExecutor, task, new StageWork() {
+            @Override
+            public void run(AnalysisTask task) {
+                runDepthStages(task);
+            }
+        });
+        executeBranch(detectExecutor, task, new StageWork() {
+            @Override
+            public void run(AnalysisTask task) {
+                runDetectionStage(task);
+            }
+        });
+        return task;
+    }
+
+    // Forget the fused depth and the calibration of the previous live frames, for example when the
+    // tracking is lost. They are reset on the depth thread, that owns them.
+    public void resetHistory() {
+        if (isClosed) {
+            return;
+        }
+        try {
+            depthExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DepthFusion fusion = depthFusion;
+                    if (fusion != null) {
+                        fusion.reset();
+                    }
+                    DepthCalibrator calibrator = depthCalibrator;
+                    if (calibrator != null) {
+                        calibrator.resetCalibration();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Nothing to reset anymore
+        }
+    }
+
+    public int getNumPendingTasks() {
+        return MAX_PENDING_TASKS - framePool.size();
+    }
+
+    // Stop the executors: the pending tasks are interrupted and no callback is delivered anymore.
+    // The models stay in the registry, for the next pipeline. The depth executor is shared with the
+    // registry: the depth stages still in its queue are cancelled by their first stage.
+    public void close() {
+        isClosed = true;
+        detectExecutor.shutdownNow();
+        outputExecutor.shutdownNow();
+    }
+
+    // The big cores are shared by the two interpreters, leaving two cores to the UI and GL threads.
+    // The depth model is the heavier one, so it gets two thirds of them.
+    public static int defaultDepthThreads() {
+        int cores = Math.max(2, Runtime.getRuntime().availableProcessors() - 2);
+        return Math.max(1, cores * 2 / 3);
+    }
+
+    private static int defaultDetectThreads() {
+        int cores = Math.max(2, Runtime.getRuntime().availableProcessors() - 2);
+        return Math.max(1, cores - defaultDepthThreads());
+    }
+
+    // ---------------- Stages ------------------
+
+    private void runDepthStages(AnalysisTask task) {
+        boolean isTracking = task.frame.getTrackingState() == TrackingState.TRACKING;
+
+        // Live frames of an almost still camera reuse the fused depth of the previous frames
+        DepthFusion fusion = depthFusion;
+        if (task.isLive() && isTracking && fusion != null && fusion.canSkipPrediction(task.frame)) {
+            beginStage(task, Stage.FUSE);
+            task.fusedDepth = fusion.reuse(task.frame);
+            endStage(task, Stage.FUSE);
+            return;
+        }
+
+        beginStage(task, Stage.PREPROCESS);
+        // The registry gives a new model if the previous one was released
+        TFLiteDepthModel depthModel;
+        try {
+            depthModel = modelRegistry.getDepthModelNow(depthThreads);
+        } catch (InterruptedException e) {
+            throw new CancellationException();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Model not loaded", e.getCause());
+        }
+        if (depthCalibrator == null) {
+            depthCalibrator = new DepthCalibrator(depthModel, imageWidth, imageHeight);
+            depthCalibrator.setCalibrationParallelism(ForkJoinPool.getCommonPoolParallelism(), System.nanoTime());
+            logger.addRecordToLog("Depth backend: " + depthModel.getBackend());
+        } else if (depthCalibrator.getModel() != depthModel) {
+            depthCalibrator.setModel(depthModel);
+            logger.addRecordToLog("Depth backend: " + depthModel.getBackend());
+        }
+        depthCalibrator.preprocess(task.frame);
+        endStage(task, Stage.PREPROCESS);
+
+        beginStage(task, Stage.DEPTH);
+        depthCalibrator.estimateDepth();
+        task.depthField = depthCalibrator.getDepthField();
+        endStage(task, Stage.DEPTH);
+
+        beginStage(task, Stage.CALIBRATE);
+        if (!isTracking) {
+            // The feature points can't be trusted
+            depthCalibrator.resetCalibration();
+        }
+        // Only the consecutive frames of the live analysis share the calibration and the fusion
+        boolean isCalibrated = true;
+        if (task.isLive()) {
+            isCalibrated = depthCalibrator.calibrateStreaming(task.frame);
+        } else {
+            depthCalibrator.calibrate(task.frame);
+        }
+        task.scaleFactor = depthCalibrator.getScaleFactor();
+        task.shiftFactor = depthCalibrator.getShiftFactor();
+        endStage(task, Stage.CALIBRATE);
+
+        if (!task.isLive()) {
+            // Saved with the capture: the samples of the calibrator are overwritten by the next frame
+            task.calibrationSamples = new CalibrationSamples(0);
+            task.calibrationSamples.copyFrom(depthCalibrator.getCalibrationSamples());
+            return;
+        }
+        if (!isCalibrated) {
+            // The factors are the ones of an older frame: they are not fused in the history
+            return;
+        }
+
+        beginStage(task, Stage.FUSE);
+        if (fusion == null || fusion.getWidth() != task.depthField.getWidth() || fusion.getHeight() != task.depthField.getHeight()) {
+            fusion = new DepthFusion(task.depthField.getWidth(), task.depthField.getHeight(), imageWidth, imageHeight);
+            depthFusion = fusion;
+        }
+        if (!isTracking) {
+            // The poses can't be trusted
+            fusion.reset();
+        }
+        task.fusedDepth = fusion.fuse(task.frame, task.depthField, (float) task.scaleFactor, (float) task.shiftFactor);
+        endStage(task, Stage.FUSE);
+    }
+
+    private void runDetectionStage(AnalysisTask task) {
+        beginStage(task, Stage.DETECT);
+        Future<TFLiteObjectDetectionModel> future;
+        int inputSize;
+        synchronized (this) {
+            future = detectionModel;
+            inputSize = detectionInputSize;
+        }
+        if (future == null) {
+            throw new IllegalStateException("Object detection model not loaded");
+        }
+
+        TFLiteObjectDetectionModel model = await(future);
+        if (personDetection.getODModel() != model) {
+            personDetection.setModel(model, inputSize);
+            Matrix frameToCropTransform =
+                    ImageUtil.getTransformationMatrix(
+                            imageWidth, imageHeight,
+                            inputSize, inputSize,
+                            SENSOR_ORIENTATION, MAINTAIN_ASPECT);
+            cropToFrameTransform = new Matrix();
+            frameToCropTransform.invert(cropToFrameTransform);
+        }
+        task.recognitions = personDetection.getRecognitionsTrackedFrom(task.frame.getImage(), cropToFrameTransform);
+        endStage(task, Stage.DETECT);
+    }
+
+    // Detection, then depth only if it's needed to measure the distance between people
+    private void runDetectFirst(AnalysisTask task) {
+        runDetectionStage(task);
+
+        if (task.recognitions.size() < 2) {
+            startOutputStages(task);
+            return;
+        }
+
+        execute(depthExecutor, task, new StageWork() {
+            @Override
+            public void run(AnalysisTask task) {
+                runDepthStages(task);
+                startOutputStages(task);
+            }
+        });
+    }
+
+    // Called by both branches when they end: the last one starts the output stages, or finishes the
+    // task if a branch failed or the task was cancelled. Only then the frame can go back to the pool.
+    private void joinBranch(AnalysisTask task) {
+        if (task.pendingBranches.decrementAndGet() > 0) {
+            return;
+        }
+
+        if (task.error != null) {
+            finish(task, null, task.error);
+        } else if (task.isCancelled() || isClosed) {
+            finish(task, null, null);
+        } else {
+            startOutputStages(task);
+        }
+    }
+
+    private void startOutputStages(AnalysisTask task) {
+        execute(outputExecutor, task, new StageWork() {
+            @Override
+            public void run(AnalysisTask task) throws IOException, JSONException {
+                runOutputStages(task);
+            }
+        });
+    }
+
+    private void runOutputStages(AnalysisTask task) throws IOException, JSONException {
+        FrameContainer frame = task.frame;
+
+        beginStage(task, Stage.TRACK);
+        distanceTracker.setCameraParameters(frame.getFx_d(), frame.getFy_d(), frame.getCx_d(), frame.getCy_d());
+        distanceTracker.setBoxDepthEstimator(boxDepthEstimator);
+        if (task.fusedDepth != null) {
+            distanceTracker.setDepthField(task.fusedDepth, 1f, 0f);
+            distanceTracker.track(task.recognitions);
+        } else if (task.depthField != null) {
+            distanceTracker.setDepthField(task.depthField, (float) task.scaleFactor, (float) task.shiftFactor);
+            distanceTracker.track(task.recognitions);
+        } else {
+            // Detect-first mode with less than two people: the depth was skipped
+            distanceTracker.trackFromFeaturePoints(task.recognitions, frame.getPointCloud(), frame.getViewMatrix());
+        }
+        task.coloredShapes = distanceTracker.getColored_shapes();
+        endStage(task, Stage.TRACK);
+
+        beginStage(task, Stage.RENDER);
+        // Converted once: the detection has already requested it
+        task.image = frame.getImage();
+        if (task.isLive()) {
+            task.detectionBitmap = distanceTracker.renderOverlay(task.overlay);
+            endStage(task, Stage.RENDER);
+            finish(task, new AnalysisResult(null, null, null, null, task.detectionBitmap, task.recognitions, task.scaleFactor, task.shiftFactor), null);
+            return;
+        }
+        task.detectionBitmap = distanceTracker.render(task.image);
+        endStage(task, Stage.RENDER);
+
+        beginStage(task, Stage.PERSIST);
+        String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        String imageFileName = "sda-" + timeStamp + "-0image.jpg";
+        // No depth image in detect-first mode with less than two people, or if the visualization is
+        // disabled: fileDepth is left out of the JSON
+        DepthColormap colormap = depthColormap;
+        String depthFileName = task.depthField != null && colormap != null ? "sda-" + timeStamp + "-1depth.jpg" : null;
+        String detectionFileName = "sda-" + timeStamp + "-2detection.jpg";
+        String JSONFileName = "sda-" + timeStamp + ".json";
+        if (depthFileName != null) {
+            ImageUtil.createImageFromBitmap(renderDepth(task.depthField, colormap), depthFileName, context);
+        }
+        ImageUtil.createImageFromBitmap(task.detectionBitmap, detectionFileName, context);
+        ImageUtil.createImageFromBitmap(task.image, imageFileName, context);
+
+        writeJsonFile(task.coloredShapes, depthFileName, imageFileName, JSONFileName, task.recognitions, (float) task.scaleFactor, (float) task.shiftFactor, frame.getFx_d(), frame.getFy_d(), frame.getCx_d(), frame.getCy_d(), task.calibrationSamples);
+        endStage(task, Stage.PERSIST);
+
+        finish(task, new AnalysisResult(imageFileName, depthFileName, detectionFileName, JSONFileName, task.detectionBitmap, task.recognitions, task.scaleFactor, task.shiftFactor), null);
+    }
+
+    // The bitmap is reused: it is compressed to file before the next task is rendered
+    private Bitmap renderDepth(DepthField depthField, DepthColormap colormap) {
+        int width = depthField.getImageWidth();
+        int height = depthField.getImageHeight();
+        if (depthBitmap == null || depthBitmap.getWidth() != width || depthBitmap.getHeight() != height) {
+            depthPixels = new int[width * height];
+            depthBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return depthField.render(colormap, depthPixels, depthBitmap);
+    }
+
+    private void writeJsonFile(List<String> colored_shapes, String depthFileName, String imageFileName, String filename, List<Detector.Recognition> mappedRecognitions, float scale_factor, float shift_factor, float fx_d, float fy_d, float cx_d, float cy_d, CalibrationSamples calibrationSamples) throws IOException, JSONException {
+        JSONObject sampleObject = new JSONObject();
+        sampleObject.put("fileDepth", depthFileName);
+        sampleObject.put("imageFileName", imageFileName);
+        sampleObject.put("scale_factor", scale_factor);
+        sampleObject.put("shift_factor", shift_factor);
+        sampleObject.put("fx_d", fx_d);
+        sampleObject.put("fy_d", fy_d);
+        sampleObject.put("cx_d", cx_d);
+        sampleObject.put("cy_d", cy_d);
+
+        // Feature points of the calibration, to repeat it offline with other depth models
+        if (calibrationSamples != null) {
+            JSONArray calibrationX = new JSONArray();
+            JSONArray calibrationY = new JSONArray();
+            JSONArray calibrationDisparity = new JSONArray();
+            for (int i = 0; i < calibrationSamples.getNumSamples(); i++) {
+                calibrationX.put(calibrationSamples.getX()[i]);
+                calibrationY.put(calibrationSamples.getY()[i]);
+                calibrationDisparity.put((double) calibrationSamples.getDisparity()[i]);
+            }
+            sampleObject.put("calibration_x", calibrationX);
+            sampleObject.put("calibration_y", calibrationY);
+            sampleObject.put("calibration_disparity", calibrationDisparity);
+        }
+
+        List<Map> finalMap = new ArrayList<>();
+        int cont_pers = 0;
+        for (Detector.Recognition r : mappedRecognitions){
+            Map<String, String> recognitions = new HashMap<>();
+            recognitions.put("rectf_bottom", r.getLocation().bottom + "");
+            recognitions.put("rectf_top", r.getLocation().top + "");
+            recognitions.put("rectf_left", r.getLocation().left + "");
+            recognitions.put("rectf_right", r.getLocation().right + "");
+            recognitions.put("color", colored_shapes.get(cont_pers++));
+            finalMap.add(recognitions);
+        }
+        sampleObject.put("detections", new ObjectMapper().writeValueAsString(finalMap));
+
+        FileOutputStream fos = context.openFileOutput(filename, Context.MODE_PRIVATE);
+        String finalMessage = sampleObject.toString();
+        fos.write(finalMessage.getBytes());
+        fos.flush();
+        fos.close();
+    }
+
+    // ---------------- Utils method ------------------
+
+    private interface StageWork {
+        void run(AnalysisTask task) throws Exception;
+    }
+
+    private static ExecutorService newStageExecutor(final String name) {
+        // Besides the captures, the queue can contain the loading of a model
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_TASKS + 2),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name);
+                    }
+                });
+    }
+
+    // Run one of the two concurrent branches. A failure is recorded in the task, so that the other
+    // branch stops at its next stage, and reported when both branches have ended.
+    private void executeBranch(Executor executor, final AnalysisTask task, final StageWork work) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work.run(task);
+                    } catch (CancellationException e) {
+                        // Reported by joinBranch
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        logger.addRecordToLog("AnalysisPipeline: " + task.getStage() + " " + e.toString());
+                        task.error = e;
+                    }
+                    joinBranch(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            task.error = e;
+            joinBranch(task);
+        }
+    }
+
+    private void execute(Executor executor, final AnalysisTask task, final StageWork work) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work.run(task);
+                    } catch (CancellationException e) {
+                        finish(task, null, null);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        logger.addRecordToLog("AnalysisPipeline: " + task.getStage() + " " + e.toString());
+                        finish(task, null, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finish(task, null, e);
+        }
+    }
+
+    // Wait for a model of the registry. An interruption means that the pipeline was closed.
+    private static <T> T await(Future<T> model) {
+        try {
+            return model.get();
+        } catch (InterruptedException e) {
+            throw new CancellationException();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Model not loaded", e.getCause());
+        }
+    }
+
+    // Throw CancellationException if the task was cancelled, otherwise notify the new stage
+    private void beginStage(AnalysisTask task, Stage stage) {
+        if (task.isCancelled() || task.error != null || isClosed) {
+            throw new CancellationException();
+        }
+        task.setStage(stage);
+        task.stageStartNanos[stage.ordinal()] = System.nanoTime();
+        notifyProgress(task, stage);
+    }
+
+    private void endStage(AnalysisTask task, Stage stage) {
+        task.stageNanos[stage.ordinal()] = System.nanoTime() - task.stageStartNanos[stage.ordinal()];
+    }
+
+    private void notifyProgress(final AnalysisTask task, final Stage stage) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed) {
+                    task.callback.onProgress(task, stage);
+                }
+            }
+        });
+    }
+
+    // Give the frame back to the pool and deliver the outcome: result, error or, if both are null,
+    // cancellation
+    private void finish(final AnalysisTask task, final AnalysisResult result, final Exception error) {
+        task.image = null;
+        if (task.depthField != null) {
+            depthCalibrator.recycle(task.depthField);
+            task.depthField = null;
+        }
+        if (task.fusedDepth != null) {
+            DepthFusion fusion = depthFusion;
+            if (fusion != null) {
+                fusion.recycle(task.fusedDepth);
+            }
+            task.fusedDepth = null;
+        }
+        framePool.offer(task.frame);
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed) {
+                    return;
+                }
+                if (error != null) {
+                    task.callback.onError(task, error);
+                } else if (result != null) {
+                    task.callback.onResult(task, result);
+                } else {
+                    task.callback.onCancelled(task);
+                }
+            }
+        });
+    }
+}
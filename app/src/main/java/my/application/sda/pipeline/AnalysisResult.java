@@ -0,0 +1,63 @@
+package my.application.sda.pipeline;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+import my.application.sda.detector.Detector;
+
+// Final result of an AnalysisTask, delivered to the Callback on the main thread
+public class AnalysisResult {
+
+    private final String imageFileName;
+    private final String depthFileName;
+    private final String detectionFileName;
+    private final String JSONFileName;
+    private final Bitmap detectionBitmap;
+    private final List<Detector.Recognition> recognitions;
+    private final double scaleFactor;
+    private final double shiftFactor;
+
+    AnalysisResult(String imageFileName, String depthFileName, String detectionFileName, String JSONFileName, Bitmap detectionBitmap, List<Detector.Recognition> recognitions, double scaleFactor, double shiftFactor) {
+        this.imageFileName = imageFileName;
+        this.depthFileName = depthFileName;
+        this.detectionFileName = detectionFileName;
+        this.JSONFileName = JSONFileName;
+        this.detectionBitmap = detectionBitmap;
+        this.recognitions = recognitions;
+        this.scaleFactor = scaleFactor;
+        this.shiftFactor = shiftFactor;
+    }
+
+    public String getImageFileName() {
+        return imageFileName;
+    }
+
+    public String getDepthFileName() {
+        return depthFileName;
+    }
+
+    public String getDetectionFileName() {
+        return detectionFileName;
+    }
+
+    public String getJSONFileName() {
+        return JSONFileName;
+    }
+
+    public Bitmap getDetectionBitmap() {
+        return detectionBitmap;
+    }
+
+    public List<Detector.Recognition> getRecognitions() {
+        return recognitions;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public double getShiftFactor() {
+        return shiftFactor;
+    }
+}
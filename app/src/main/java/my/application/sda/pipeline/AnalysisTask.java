@@ -0,0 +1,79 @@
+package my.application.sda.pipeline;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import my.application.sda.calibrator.CalibrationSamples;
+import my.application.sda.calibrator.DepthField;
+import my.application.sda.calibrator.FrameContainer;
+import my.application.sda.detector.Detector;
+
+// A capture going through the AnalysisPipeline.
+// Every intermediate result is written by one stage and read by the following ones: the executors
+// and the join of the two branches hand the task over, so the fields don't need any further
+// synchronization.
+public class AnalysisTask {
+
+    final AnalysisPipeline.Callback callback;
+    final FrameContainer frame;
+    // Transparent bitmap where a live task draws its result, null for the pictures
+    final Bitmap overlay;
+
+    private volatile boolean isCancelled = false;
+    private volatile AnalysisPipeline.Stage stage = AnalysisPipeline.Stage.CAPTURE;
+
+    // Depth and detection run concurrently: the last one to end goes on with the output stages
+    final AtomicInteger pendingBranches = new AtomicInteger(2);
+    // First failure of a branch, it stops the other one
+    volatile Exception error;
+
+    // Duration of each stage, indexed by ordinal
+    final long[] stageStartNanos = new long[AnalysisPipeline.Stage.values().length];
+    final long[] stageNanos = new long[AnalysisPipeline.Stage.values().length];
+
+    // Intermediate results
+    Bitmap image;
+    DepthField depthField;
+    // Calibrated disparity fused with the previous frames, read with scale 1 and shift 0
+    DepthField fusedDepth;
+    double scaleFactor;
+    double shiftFactor;
+    CalibrationSamples calibrationSamples;
+    List<Detector.Recognition> recognitions;
+    List<String> coloredShapes;
+    Bitmap detectionBitmap;
+
+    AnalysisTask(FrameContainer frame, Bitmap overlay, AnalysisPipeline.Callback callback) {
+        this.frame = frame;
+        this.overlay = overlay;
+        this.callback = callback;
+    }
+
+    // The task stops before its next stage starts
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    public boolean isLive() {
+        return overlay != null;
+    }
+
+    // Duration of the stage in nanoseconds, 0 if the stage was not completed
+    public long getStageNanos(AnalysisPipeline.Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public AnalysisPipeline.Stage getStage() {
+        return stage;
+    }
+
+    void setStage(AnalysisPipeline.Stage stage) {
+        this.stage = stage;
+    }
+}
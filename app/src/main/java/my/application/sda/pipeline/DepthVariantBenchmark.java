@@ -0,0 +1,308 @@
+package my.application.sda.pipeline;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import my.application.sda.calibrator.CalibrationSamples;
+import my.application.sda.calibrator.DepthCalibrator;
+import my.application.sda.detector.Detector;
+import my.application.sda.detector.DistanceTracker;
+import my.application.sda.helpers.ImageUtil;
+import my.application.sda.model.ModelRegistry;
+import my.application.sda.model.TFLiteDepthModel;
+
+// Runs every PyDNet variant of the assets (tflite_pydnet*.tflite) on the captures saved by the app and
+// compares them with the float32 model: latency of the inference and error of the calibrated distances,
+// from the camera and from the closest person. Only the captures saved with their calibration samples
+// and with at least one person are used.
+// The float32 model is the one of the ModelRegistry, confined to its depth thread: run() must be called
+// on ModelRegistry.getDepthExecutor(), where the variants are loaded and closed too. Slow: the live
+// analysis waits for it to finish.
+public class DepthVariantBenchmark {
+
+    public static class VariantResult {
+        public String modelName;
+        public String backend;
+        public int inputWidth;
+        public int inputHeight;
+        public double medianLatencyMillis;
+        public double meanLatencyMillis;
+        // Mean absolute difference from the float32 model, in meters
+        public double cameraDistanceError;
+        public double closestDistanceError;
+        public int numCaptures;
+        public int numPeople;
+    }
+
+    private static class Capture {
+        int[] pixels;
+        int width;
+        int height;
+        float fx_d, fy_d, cx_d, cy_d;
+        CalibrationSamples samples;
+        List<Detector.Recognition> recognitions;
+
+        // Distances of the float32 model, one per person
+        float[] cameraDistances;
+        float[] closestDistances;
+    }
+
+    private static final String TAG = "DepthVariantBenchmark";
+
+    private static final long CALIBRATION_SEED = 42;
+
+    private final Context context;
+    private final int numThreads;
+
+    // numThreads should be the one of the pipeline, otherwise the model of the registry is loaded again
+    public DepthVariantBenchmark(Context context, int numThreads) {
+        this.context = context.getApplicationContext();
+        this.numThreads = numThreads;
+    }
+
+    public List<VariantResult> run() throws IOException, JSONException, InterruptedException, ExecutionException {
+        List<Capture> captures = loadCaptures();
+        List<VariantResult> results = new ArrayList<>();
+        if (captures.isEmpty()) {
+            return results;
+        }
+
+        // The float32 model first: it's the reference of the others
+        results.add(runVariant(ModelRegistry.DEPTH_MODEL_FILE, captures, true));
+        for (String modelName : findVariants()) {
+            results.add(runVariant(modelName, captures, false));
+        }
+        return results;
+    }
+
+    public static String format(List<VariantResult> results) {
+        if (results.isEmpty()) {
+            return "No capture with calibration samples and people";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (VariantResult r : results) {
+            builder.append(String.format(Locale.US,
+                    "%s %dx%d %s: %.1f ms (mean %.1f), error %.2f m from the camera, %.2f m from the closest person (%d people, %d captures)\n",
+                    r.modelName, r.inputWidth, r.inputHeight, r.backend,
+                    r.medianLatencyMillis, r.meanLatencyMillis,
+                    r.cameraDistanceError, r.closestDistanceError, r.numPeople, r.numCaptures));
+        }
+        return builder.toString();
+    }
+
+    // Variants in the assets, without the float32 model
+    private List<String> findVariants() throws IOException {
+        List<String> variants = new ArrayList<>();
+        String[] assets = context.getAssets().list("");
+        if (assets == null) {
+            return variants;
+        }
+        Arrays.sort(assets);
+        for (String asset : assets) {
+            if (asset.startsWith("tflite_pydnet") && asset.endsWith(".tflite") && !asset.equals(ModelRegistry.DEPTH_MODEL_FILE)) {
+                variants.add(asset);
+            }
+        }
+        return variants;
+    }
+
+    private VariantResult runVariant(String modelName, List<Capture> captures, boolean isReference) throws IOException, InterruptedException, ExecutionException {
+        // The reference is already loaded and warmed up by the registry: no second copy in memory
+        TFLiteDepthModel model;
+        if (isReference) {
+            model = ModelRegistry.getInstance(context).getDepthModelNow(numThreads);
+        } else {
+            model = new TFLiteDepthModel(modelName);
+            model.init(context, numThreads);
+        }
+
+        VariantResult result = new VariantResult();
+        result.modelName = modelName;
+        result.backend = String.valueOf(model.getBackend());
+        result.inputWidth = model.depthWidth;
+        result.inputHeight = model.depthHeight;
+
+        long[] nanos = new long[captures.size()];
+        double cameraError = 0;
+        double closestError = 0;
+        int numCameraErrors = 0;
+        int numClosestErrors = 0;
+
+        try {
+            if (!isReference) {
+                model.warmUp();
+            }
+            DistanceTracker distanceTracker = new DistanceTracker();
+
+            for (int c = 0; c < captures.size(); c++) {
+                Capture capture = captures.get(c);
+                DepthCalibrator depthCalibrator = new DepthCalibrator(model, capture.width, capture.height);
+                // Same RANSAC samples for every variant
+                depthCalibrator.setCalibrationParallelism(ForkJoinPool.getCommonPoolParallelism(), CALIBRATION_SEED);
+
+                ImageUtil.resizeARGBToFloatRGB(capture.pixels, capture.width, capture.height, model.depthWidth, model.depthHeight, model.getInput());
+                long start = SystemClock.elapsedRealtimeNanos();
+                depthCalibrator.estimateDepth();
+                nanos[c] = SystemClock.elapsedRealtimeNanos() - start;
+                depthCalibrator.calibrate(capture.samples);
+
+                distanceTracker.setCameraParameters(capture.fx_d, capture.fy_d, capture.cx_d, capture.cy_d);
+                distanceTracker.setDepthField(depthCalibrator.getDepthField(), (float) depthCalibrator.getScaleFactor(), (float) depthCalibrator.getShiftFactor());
+                distanceTracker.track(capture.recognitions);
+                float[] cameraDistances = distanceTracker.getCameraDistances();
+                float[] closestDistances = distanceTracker.getClosestDistances().clone();
+
+                if (isReference) {
+                    capture.cameraDistances = cameraDistances;
+                    capture.closestDistances = closestDistances;
+                }
+
+                for (int i = 0; i < cameraDistances.length; i++) {
+                    if (isFinite(cameraDistances[i]) && isFinite(capture.cameraDistances[i])) {
+                        cameraError += Math.abs(cameraDistances[i] - capture.cameraDistances[i]);
+                        numCameraErrors++;
+                    }
+                    // Float.MAX_VALUE for the people alone
+                    if (closestDistances[i] < Float.MAX_VALUE && capture.closestDistances[i] < Float.MAX_VALUE
+                            && isFinite(closestDistances[i]) && isFinite(capture.closestDistances[i])) {
+                        closestError += Math.abs(closestDistances[i] - capture.closestDistances[i]);
+                        numClosestErrors++;
+                    }
+                }
+                result.numPeople += cameraDistances.length;
+            }
+        } finally {
+            // The model of the registry stays loaded for the pipeline
+            if (!isReference) {
+                model.close();
+            }
+        }
+
+        double sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        Arrays.sort(nanos);
+        result.medianLatencyMillis = nanos[nanos.length / 2] / 1e6;
+        result.meanLatencyMillis = sum / nanos.length / 1e6;
+        result.cameraDistanceError = numCameraErrors > 0 ? cameraError / numCameraErrors : Double.NaN;
+        result.closestDistanceError = numClosestErrors > 0 ? closestError / numClosestErrors : Double.NaN;
+        result.numCaptures = captures.size();
+        return result;
+    }
+
+    // Captures saved by AnalysisPipeline: sda-<timestamp>.json with the image sda-<timestamp>-0image.jpg
+    private List<Capture> loadCaptures() throws IOException {
+        List<Capture> captures = new ArrayList<>();
+        String[] files = context.getFilesDir().list();
+        if (files == null) {
+            return captures;
+        }
+        Arrays.sort(files);
+
+        for (String file : files) {
+            if (!file.startsWith("sda-") || !file.endsWith(".json")) {
+                continue;
+            }
+            try {
+                Capture capture = loadCapture(file);
+                if (capture != null) {
+                    captures.add(capture);
+                }
+            } catch (IOException | JSONException e) {
+                // Skip the captures that can't be read
+                Log.w(TAG, "Can't read the capture " + file, e);
+            }
+        }
+        return captures;
+    }
+
+    private Capture loadCapture(String fileName) throws IOException, JSONException {
+        JSONObject sampleObject = new JSONObject(new String(readFile(fileName)));
+        JSONArray calibrationX = sampleObject.optJSONArray("calibration_x");
+        if (calibrationX == null) {
+            // Saved before the calibration samples, or without depth
+            return null;
+        }
+        JSONArray calibrationY = sampleObject.getJSONArray("calibration_y");
+        JSONArray calibrationDisparity = sampleObject.getJSONArray("calibration_disparity");
+
+        Capture capture = new Capture();
+        capture.samples = new CalibrationSamples(calibrationX.length());
+        for (int i = 0; i < calibrationX.length(); i++) {
+            capture.samples.add(calibrationX.getInt(i), calibrationY.getInt(i), (float) calibrationDisparity.getDouble(i));
+        }
+        capture.fx_d = (float) sampleObject.getDouble("fx_d");
+        capture.fy_d = (float) sampleObject.getDouble("fy_d");
+        capture.cx_d = (float) sampleObject.getDouble("cx_d");
+        capture.cy_d = (float) sampleObject.getDouble("cy_d");
+
+        // Same format written by AnalysisPipeline.writeJsonFile()
+        capture.recognitions = new ArrayList<>();
+        Map[] detections = new ObjectMapper().readValue(sampleObject.getString("detections"), Map[].class);
+        for (int i = 0; i < detections.length; i++) {
+            RectF location = new RectF(
+                    Float.parseFloat((String) detections[i].get("rectf_left")),
+                    Float.parseFloat((String) detections[i].get("rectf_top")),
+                    Float.parseFloat((String) detections[i].get("rectf_right")),
+                    Float.parseFloat((String) detections[i].get("rectf_bottom")));
+            capture.recognitions.add(new Detector.Recognition("" + i, "person", 1f, location));
+        }
+        if (capture.recognitions.isEmpty()) {
+            return null;
+        }
+
+        byte[] image = readFile(sampleObject.getString("imageFileName"));
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
+        if (bitmap == null) {
+            return null;
+        }
+        capture.width = bitmap.getWidth();
+        capture.height = bitmap.getHeight();
+        capture.pixels = new int[capture.width * capture.height];
+        bitmap.getPixels(capture.pixels, 0, capture.width, 0, 0, capture.width, capture.height);
+        bitmap.recycle();
+        return capture;
+    }
+
+    private byte[] readFile(String fileName) throws IOException {
+        InputStream inputStream = context.openFileInput(fileName);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static boolean isFinite(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+}
@@ -0,0 +1,210 @@
+package my.application.sda.pipeline;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import my.application.sda.calibrator.FrameRing;
+
+// Continuous analysis of the preview for the live mode.
+// Only one live task is in the pipeline at a time, and it always takes the newest frame of the ring:
+// the frames published meanwhile are dropped. The next task starts after the target interval, or
+// later if the analysis is slower than the target, leaving the pipeline idle for IDLE_FRACTION of
+// the analysis time so it doesn't starve the render loop.
+// The latency of every stage is measured with an exponential moving average. Everything runs on the
+// main thread, like the callbacks of the pipeline.
+public class LiveAnalysisScheduler implements AnalysisPipeline.Callback {
+
+    private static final double EMA_ALPHA = 0.2;
+    private static final double IDLE_FRACTION = 0.25;
+    // Delay before trying again when there is no new frame or the pipeline is full
+    private static final long RETRY_DELAY_MILLIS = 30;
+    private static final long ERROR_DELAY_MILLIS = 1000;
+
+    private final AnalysisPipeline pipeline;
+    private final FrameRing frameRing;
+    private final AnalysisPipeline.Callback listener;
+    private final long targetIntervalNanos;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Two overlays: the pipeline draws on one while the other is shown
+    private final Bitmap[] overlays = new Bitmap[2];
+    private int nextOverlay = 0;
+    // Overlay of the current task
+    private int currentOverlay = 0;
+
+    private boolean isRunning = false;
+    private AnalysisTask currentTask;
+    private long currentTaskStart;
+    private long lastSequence = 0;
+    private long lastResultTime = 0;
+
+    // Statistics
+    private final double[] stageLatencyNanos = new double[AnalysisPipeline.Stage.values().length];
+    private double latencyNanos = 0;
+    private double resultIntervalNanos = 0;
+    private long numAnalyzedFrames = 0;
+    private long numDroppedFrames = 0;
+
+    private final Runnable submitNext = new Runnable() {
+        @Override
+        public void run() {
+            if (!isRunning || currentTask != null) {
+                return;
+            }
+
+            // Wait for a frame not analyzed yet
+            long sequence = frameRing.getLastSequence();
+            if (sequence == lastSequence) {
+                handler.postDelayed(this, RETRY_DELAY_MILLIS);
+                return;
+            }
+
+            long start = System.nanoTime();
+            currentTask = pipeline.submitLive(frameRing, overlays[nextOverlay], LiveAnalysisScheduler.this);
+            if (currentTask == null) {
+                handler.postDelayed(this, RETRY_DELAY_MILLIS);
+                return;
+            }
+
+            currentOverlay = nextOverlay;
+            nextOverlay = (nextOverlay + 1) % overlays.length;
+            currentTaskStart = start;
+            if (lastSequence > 0) {
+                numDroppedFrames += sequence - lastSequence - 1;
+            }
+            lastSequence = sequence;
+        }
+    };
+
+    // listener receives the results of the live tasks, with the overlay as detection bitmap
+    public LiveAnalysisScheduler(AnalysisPipeline pipeline, FrameRing frameRing, int imageWidth, int imageHeight, float targetRate, AnalysisPipeline.Callback listener) {
+        this.pipeline = pipeline;
+        this.frameRing = frameRing;
+        this.listener = listener;
+        this.targetIntervalNanos = (long) (1e9 / targetRate);
+
+        for (int i = 0; i < overlays.length; i++) {
+            overlays[i] = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    public void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+
+        latencyNanos = 0;
+        resultIntervalNanos = 0;
+        lastResultTime = 0;
+        numAnalyzedFrames = 0;
+        numDroppedFrames = 0;
+        lastSequence = frameRing.getLastSequence() - 1;
+        for (int i = 0; i < stageLatencyNanos.length; i++) {
+            stageLatencyNanos[i] = 0;
+        }
+
+        handler.post(submitNext);
+    }
+
+    // The task in the pipeline is cancelled, its result is ignored anyway
+    public void stop() {
+        isRunning = false;
+        handler.removeCallbacks(submitNext);
+        if (currentTask != null) {
+            currentTask.cancel();
+            currentTask = null;
+
+            // The cancelled task may still be drawing on its overlay: it is replaced, and the next task
+            // draws on the new one instead of the overlay on screen
+            Bitmap overlay = overlays[currentOverlay];
+            overlays[currentOverlay] = Bitmap.createBitmap(overlay.getWidth(), overlay.getHeight(), Bitmap.Config.ARGB_8888);
+            nextOverlay = currentOverlay;
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    // Analyzed frames per second
+    public double getThroughput() {
+        return resultIntervalNanos > 0 ? 1e9 / resultIntervalNanos : 0;
+    }
+
+    // Average time from the submission of a task, when it takes the newest frame of the ring, to its result.
+    // The time the frame waited in the ring before is not included.
+    public double getLatencyMillis() {
+        return latencyNanos / 1e6;
+    }
+
+    public double getStageLatencyMillis(AnalysisPipeline.Stage stage) {
+        return stageLatencyNanos[stage.ordinal()] / 1e6;
+    }
+
+    public long getNumAnalyzedFrames() {
+        return numAnalyzedFrames;
+    }
+
+    public long getNumDroppedFrames() {
+        return numDroppedFrames;
+    }
+
+    // ---------------- Callback ------------------
+
+    @Override
+    public void onProgress(AnalysisTask task, AnalysisPipeline.Stage stage) {
+    }
+
+    @Override
+    public void onResult(AnalysisTask task, AnalysisResult result) {
+        if (task != currentTask) {
+            return;
+        }
+        currentTask = null;
+
+        long now = System.nanoTime();
+        long latency = now - currentTaskStart;
+        latencyNanos = average(latencyNanos, latency);
+        for (AnalysisPipeline.Stage stage : AnalysisPipeline.Stage.values()) {
+            long stageNanos = task.getStageNanos(stage);
+            if (stageNanos > 0) {
+                stageLatencyNanos[stage.ordinal()] = average(stageLatencyNanos[stage.ordinal()], stageNanos);
+            }
+        }
+        if (lastResultTime > 0) {
+            resultIntervalNanos = average(resultIntervalNanos, now - lastResultTime);
+        }
+        lastResultTime = now;
+        numAnalyzedFrames++;
+
+        listener.onResult(task, result);
+
+        long delayNanos = Math.max(targetIntervalNanos - latency, (long) (latencyNanos * IDLE_FRACTION));
+        handler.postDelayed(submitNext, delayNanos / 1000000);
+    }
+
+    @Override
+    public void onCancelled(AnalysisTask task) {
+        if (task != currentTask) {
+            return;
+        }
+        currentTask = null;
+        handler.postDelayed(submitNext, RETRY_DELAY_MILLIS);
+    }
+
+    @Override
+    public void onError(AnalysisTask task, Exception e) {
+        if (task != currentTask) {
+            return;
+        }
+        currentTask = null;
+        listener.onError(task, e);
+        handler.postDelayed(submitNext, ERROR_DELAY_MILLIS);
+    }
+
+    private static double average(double average, double value) {
+        return average == 0 ? value : EMA_ALPHA * value + (1 - EMA_ALPHA) * average;
+    }
+}
@@ -0,0 +1,127 @@
+package my.application.sda.calibrator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CalibratorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ITERATIONS = 200;
+    private static final double SCALE = 1.7;
+    private static final double SHIFT = 0.1;
+
+    private static DepthField randomDepthField(long seed) {
+        DepthField depthField = new DepthField(320, 192, WIDTH, HEIGHT);
+        float[] values = depthField.getValues();
+        Random random = new Random(seed);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0.2f + random.nextFloat();
+        }
+        return depthField;
+    }
+
+    // Points following SCALE and SHIFT with a relative noise of 2%, and a ratio of random outliers
+    private static CalibrationSamples randomSamples(DepthField depthField, int numSamples, float outlierRatio, long seed) {
+        CalibrationSamples samples = new CalibrationSamples(numSamples);
+        Random random = new Random(seed);
+        for (int i = 0; i < numSamples; i++) {
+            int x = random.nextInt(WIDTH);
+            int y = random.nextInt(HEIGHT);
+            float disparity;
+            if (random.nextFloat() < outlierRatio) {
+                disparity = 0.2f + 3f * random.nextFloat();
+            } else {
+                disparity = (float) ((SCALE * depthField.sample(x, y) + SHIFT) * (1 + 0.02 * random.nextGaussian()));
+            }
+            samples.add(x, y, disparity);
+        }
+        return samples;
+    }
+
+    private static Calibrator newCalibrator() {
+        Calibrator calibrator = new Calibrator(WIDTH, HEIGHT, ITERATIONS, 0.08, 0.3);
+        calibrator.setParallelism(1, 7);
+        return calibrator;
+    }
+
+    @Test
+    public void fullSampleRecoversModel() {
+        DepthField depthField = randomDepthField(1);
+        Calibrator calibrator = newCalibrator();
+        calibrator.calibrate(depthField, randomSamples(depthField, 1000, 0f, 2));
+        assertEquals(SCALE, calibrator.getScaleFactor(), 0.05);
+        assertEquals(SHIFT, calibrator.getShiftFactor(), 0.05);
+    }
+
+    @Test
+    public void lastFactorsAreKeptWithoutModel() {
+        DepthField depthField = randomDepthField(1);
+        Calibrator calibrator = newCalibrator();
+        assertTrue(calibrator.calibrate(depthField, randomSamples(depthField, 1000, 0f, 2)));
+        double scaleFactor = calibrator.getScaleFactor();
+        double shiftFactor = calibrator.getShiftFactor();
+
+        assertFalse(calibrator.calibrate(depthField, new CalibrationSamples(0)));
+        assertEquals(scaleFactor, calibrator.getScaleFactor(), 0);
+        assertEquals(shiftFactor, calibrator.getShiftFactor(), 0);
+    }
+
+    @Test
+    public void minimalSampleRecoversModelWithOutliers() {
+        DepthField depthField = randomDepthField(1);
+        Calibrator calibrator = newCalibrator();
+        calibrator.setMinimalSample(0.1, 0.99, true);
+        for (float outlierRatio : new float[] {0f, 0.3f, 0.5f}) {
+            calibrator.calibrate(depthField, randomSamples(depthField, 1000, outlierRatio, 3));
+            assertEquals(SCALE, calibrator.getScaleFactor(), 0.05);
+            assertEquals(SHIFT, calibrator.getShiftFactor(), 0.05);
+        }
+    }
+
+    @Test
+    public void wrongInitialModelIsIgnored() {
+        DepthField depthField = randomDepthField(1);
+        CalibrationSamples samples = randomSamples(depthField, 1000, 0.3f, 4);
+        Calibrator calibrator = new Calibrator(WIDTH, HEIGHT, ITERATIONS, 0.08, 0.3);
+        calibrator.setParallelism(4, 7);
+        calibrator.setMinimalSample(0.1, 0.99, true);
+
+        // No point agrees with this model
+        calibrator.setInitialModel(100, -50);
+        calibrator.calibrate(depthField, samples);
+        assertEquals(SCALE, calibrator.getScaleFactor(), 0.05);
+        assertEquals(SHIFT, calibrator.getShiftFactor(), 0.05);
+    }
+
+    @Test
+    public void sameSeedSameResult() {
+        DepthField depthField = randomDepthField(1);
+        CalibrationSamples samples = randomSamples(depthField, 1000, 0.3f, 5);
+        double[] scaleFactors = new double[2];
+        double[] shiftFactors = new double[2];
+        for (int run = 0; run < 2; run++) {
+            Calibrator calibrator = new Calibrator(WIDTH, HEIGHT, ITERATIONS, 0.08, 0.3);
+            calibrator.setParallelism(4, 42);
+            calibrator.calibrate(depthField, samples);
+            scaleFactors[run] = calibrator.getScaleFactor();
+            shiftFactors[run] = calibrator.getShiftFactor();
+        }
+        assertEquals(scaleFactors[0], scaleFactors[1], 0);
+        assertEquals(shiftFactors[0], shiftFactors[1], 0);
+    }
+
+    @Test
+    public void adaptiveIterations() {
+        assertEquals(1, Calibrator.getAdaptiveIterations(1, 0.99));
+        assertEquals(Integer.MAX_VALUE, Calibrator.getAdaptiveIterations(0, 0.99));
+        // log(0.01) / log(0.75) = 16.0
+        assertEquals(17, Calibrator.getAdaptiveIterations(0.5, 0.99));
+        assertTrue(Calibrator.getAdaptiveIterations(1e-6, 0.99) > 0);
+    }
+}
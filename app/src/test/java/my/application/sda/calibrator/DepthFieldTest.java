@@ -0,0 +1,81 @@
+package my.application.sda.calibrator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DepthFieldTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 384;
+
+    private static FloatBuffer randomOutput(int length, long seed) {
+        FloatBuffer output = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        Random random = new Random(seed);
+        for (int i = 0; i < length; i++) {
+            output.put(i, 2f + 30f * random.nextFloat());
+        }
+        return output;
+    }
+
+    @Test
+    public void normalizeInUnitRange() {
+        float[] values = {4, -2, 10, 1};
+        DepthField.normalize(values, values.length);
+        assertArrayEquals(new float[] {0.5f, 0f, 1f, 0.25f}, values, 1e-6f);
+    }
+
+    @Test
+    public void normalizeOnlyTheFirstValues() {
+        float[] values = {1, 3, 2, 100};
+        DepthField.normalize(values, 3);
+        assertArrayEquals(new float[] {0f, 1f, 0.5f, 100f}, values, 1e-6f);
+    }
+
+    @Test
+    public void degenerateValuesBecomeZero() {
+        float[] constant = {3, 3, 3, Float.NaN};
+        DepthField.normalize(constant, constant.length);
+        assertArrayEquals(new float[] {0, 0, 0, 0}, constant, 0);
+
+        float[] withNaN = {Float.NaN, 1, 2, 3};
+        DepthField.normalize(withNaN, withNaN.length);
+        assertArrayEquals(new float[] {0, 0, 0.5f, 1}, withNaN, 1e-6f);
+
+        float[] infinite = {Float.NEGATIVE_INFINITY, 1, Float.POSITIVE_INFINITY};
+        DepthField.normalize(infinite, infinite.length);
+        assertArrayEquals(new float[] {0, 0, 0}, infinite, 0);
+    }
+
+    @Test
+    public void rawValuesAreRecovered() {
+        FloatBuffer output = randomOutput(WIDTH * HEIGHT, 1);
+        DepthField depthField = new DepthField(WIDTH, HEIGHT, 2 * WIDTH, 2 * HEIGHT);
+        depthField.setNormalized(output);
+
+        float[] values = depthField.getValues();
+        for (int i = 0; i < values.length; i += 97) {
+            float raw = depthField.getRawMinimum() + depthField.getRawRange() * values[i];
+            assertEquals(output.get(i), raw, 1e-4f);
+        }
+        assertEquals(0, output.position());
+    }
+
+    @Test
+    public void sampleAtPixelCenters() {
+        DepthField depthField = new DepthField(2, 2, 4, 4);
+        FloatBuffer output = FloatBuffer.wrap(new float[] {0, 1, 2, 3});
+        depthField.setNormalized(output);
+
+        // The centers of the model pixels are at 1.5 and 3.5 in image coordinates
+        assertEquals(0f, depthField.sample(0, 0), 1e-6f);
+        assertEquals(1f, depthField.sample(3, 3), 1e-6f);
+        assertEquals(0.5f, depthField.sample(1.5f, 1.5f), 1e-6f);
+    }
+}
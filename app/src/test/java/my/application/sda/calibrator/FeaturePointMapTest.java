@@ -0,0 +1,112 @@
+package my.application.sda.calibrator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeaturePointMapTest {
+
+    private static final float VOXEL_SIZE = 0.1f;
+    private static final long SECOND = 1000000000L;
+    private static final long MAX_AGE = 10 * SECOND;
+
+    // Every point of the map is visible with this matrix, since they are all in [-1,1]
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1};
+
+    private FeaturePointMap map;
+    private final PointCloudSnapshot cloud = new PointCloudSnapshot();
+    private final PointCloudSnapshot visible = new PointCloudSnapshot();
+
+    @Before
+    public void setUp() {
+        map = new FeaturePointMap(16, VOXEL_SIZE, MAX_AGE);
+    }
+
+    // Update the map with a single point of confidence 1
+    private void observe(long timestamp, int id, float x, float y, float z) {
+        cloud.clear();
+        cloud.add(id, x, y, z, 1);
+        cloud.setTimestamp(timestamp);
+        map.update(cloud);
+    }
+
+    // Index in visible of the point with this id, -1 if it isn't in the map
+    private int find(int id) {
+        map.collectVisible(IDENTITY, visible);
+        for (int i = 0; i < visible.getNumPoints(); i++) {
+            if (visible.getIds()[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void sameIdIsMerged() {
+        observe(1, 7, 0.51f, 0.51f, 0.51f);
+        observe(2, 7, 0.55f, 0.53f, 0.51f);
+        assertEquals(1, map.getNumPoints());
+
+        int i = find(7);
+        assertEquals(0.53f, visible.getX()[i], 1e-6f);
+        assertEquals(0.52f, visible.getY()[i], 1e-6f);
+        assertEquals(0.51f, visible.getZ()[i], 1e-6f);
+    }
+
+    @Test
+    public void newIdInOccupiedVoxelIsAnAlias() {
+        observe(1, 1, 0.51f, 0.51f, 0.51f);
+        observe(2, 2, 0.55f, 0.55f, 0.55f);
+        assertEquals(1, map.getNumPoints());
+
+        // Far from the voxel, the alias still merges in the same point
+        observe(3, 2, 0.59f, 0.61f, 0.51f);
+        assertEquals(1, map.getNumPoints());
+        assertEquals(0, find(1));
+    }
+
+    @Test
+    public void oldPointsAreEvicted() {
+        observe(0, 1, -0.5f, -0.5f, -0.5f);
+        observe(0, 2, -0.49f, -0.49f, -0.49f);
+        observe(5 * SECOND, 3, 0.5f, 0.5f, 0.5f);
+        observe(5 * SECOND, 4, 0.51f, 0.51f, 0.51f);
+        assertEquals(2, map.getNumPoints());
+
+        // The first point and its alias are evicted, the second one moves to index 0 with its alias
+        observe(11 * SECOND, 4, 0.52f, 0.52f, 0.52f);
+        assertEquals(1, map.getNumPoints());
+        assertEquals(-1, find(1));
+        assertEquals(0, find(3));
+
+        observe(12 * SECOND, 2, -0.3f, -0.3f, -0.3f);
+        assertEquals(2, map.getNumPoints());
+        observe(13 * SECOND, 4, 0.52f, 0.52f, 0.52f);
+        assertEquals(2, map.getNumPoints());
+    }
+
+    @Test
+    public void mergedPointChangesVoxel() {
+        // The point starts at the center of a voxel and is pulled into the next one
+        observe(1, 1, 0.45f, 0.05f, 0.05f);
+        for (int n = 0; n < 20; n++) {
+            observe(2 + n, 1, 0.65f, 0.05f, 0.05f);
+        }
+        assertEquals(1, map.getNumPoints());
+        int i = find(1);
+        assertEquals(0.65f, visible.getX()[i], 0.02f);
+
+        // The old voxel is free: a new id there is a new point
+        observe(30, 2, 0.45f, 0.05f, 0.05f);
+        assertEquals(2, map.getNumPoints());
+
+        // The new voxel belongs to the merged point
+        observe(31, 3, 0.61f, 0.05f, 0.05f);
+        assertEquals(2, map.getNumPoints());
+    }
+}
@@ -0,0 +1,254 @@
+package my.application.sda.calibrator;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+
+    private static final int CAPACITY = 4;
+    private static final int NUM_FRAMES = 20000;
+    private static final int NUM_READERS = 3;
+
+    // Every point of frame n has x = n and the timestamp of the point cloud is n, so a reader can tell if
+    // the frame was overwritten while it was pinned
+    private static void write(FrameContainer frame, int n) {
+        PointCloudSnapshot pointCloud = frame.getPointCloud();
+        pointCloud.clear();
+        for (int i = 0; i < 1 + n % 32; i++) {
+            pointCloud.add(i, n, 0, 0, 1);
+        }
+        pointCloud.setTimestamp(n);
+    }
+
+    // Frame number of a consistent frame, -1 otherwise
+    private static int check(FrameContainer frame) {
+        PointCloudSnapshot pointCloud = frame.getPointCloud();
+        int n = (int) pointCloud.getTimestamp();
+        if (pointCloud.getNumPoints() != 1 + n % 32) {
+            return -1;
+        }
+        float[] x = pointCloud.getX();
+        for (int i = 0; i < pointCloud.getNumPoints(); i++) {
+            if (x[i] != n) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void emptyRing() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        assertEquals(0, ring.getLastSequence());
+        assertNull(ring.acquireLatest());
+        assertNull(ring.acquireBestFrame());
+    }
+
+    @Test
+    public void latestFrame() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        for (int n = 1; n <= 2 * CAPACITY + 1; n++) {
+            write(ring.acquireWriteSlot(), n);
+            ring.publish();
+
+            FrameContainer frame = ring.acquireLatest();
+            assertEquals(n, check(frame));
+            ring.release(frame);
+        }
+        assertEquals(2 * CAPACITY + 1, ring.getLastSequence());
+    }
+
+    @Test
+    public void pinnedFrameIsNotOverwritten() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        write(ring.acquireWriteSlot(), 1);
+        ring.publish();
+        FrameContainer pinned = ring.acquireLatest();
+
+        for (int n = 2; n <= 3 * CAPACITY; n++) {
+            FrameContainer frame = ring.acquireWriteSlot();
+            assertNotNull(frame);
+            assertTrue(frame != pinned);
+            write(frame, n);
+            ring.publish();
+        }
+        assertEquals(1, check(pinned));
+        ring.release(pinned);
+    }
+
+    @Test
+    public void fullRingDropsFrames() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        FrameContainer[] pinned = new FrameContainer[CAPACITY];
+        for (int n = 1; n <= CAPACITY; n++) {
+            write(ring.acquireWriteSlot(), n);
+            ring.publish();
+            pinned[n - 1] = ring.acquireLatest();
+        }
+        assertNull(ring.acquireWriteSlot());
+
+        ring.release(pinned[0]);
+        assertSame(pinned[0], ring.acquireWriteSlot());
+    }
+
+    @Test
+    public void abortedFrameIsNotVisible() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        for (int n = 1; n <= CAPACITY; n++) {
+            write(ring.acquireWriteSlot(), n);
+            ring.publish();
+        }
+
+        // A fill that fails halfway, with more points than any published frame
+        FrameContainer aborted = ring.acquireWriteSlot();
+        PointCloudSnapshot pointCloud = aborted.getPointCloud();
+        for (int i = 0; i < 100; i++) {
+            pointCloud.add(i, -1, 0, 0, 1);
+        }
+        ring.abort();
+
+        FrameContainer frame = ring.acquireBestFrame();
+        assertTrue(frame != aborted);
+        assertTrue(check(frame) > 0);
+        ring.release(frame);
+        assertEquals(CAPACITY, ring.getLastSequence());
+    }
+
+    @Test
+    public void abortedSlotIsReused() {
+        FrameRing ring = new FrameRing(1);
+        write(ring.acquireWriteSlot(), 1);
+        ring.abort();
+        assertNull(ring.acquireLatest());
+
+        write(ring.acquireWriteSlot(), 2);
+        ring.publish();
+        FrameContainer frame = ring.acquireLatest();
+        assertEquals(2, check(frame));
+        ring.release(frame);
+    }
+
+    // One writer and several readers: a pinned frame is never overwritten and the latest frame never goes back
+    @Test(timeout = 60000)
+    public void concurrentWriterAndReaders() throws InterruptedException {
+        final FrameRing ring = new FrameRing(CAPACITY);
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<>();
+        final AtomicInteger numRead = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        // Every reader reads the first published frame before the writer goes on
+        final CountDownLatch firstReads = new CountDownLatch(NUM_READERS);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 1; n <= NUM_FRAMES; n++) {
+                    FrameContainer frame = ring.acquireWriteSlot();
+                    if (frame == null) {
+                        // Every slot is pinned: the frame is dropped
+                        continue;
+                    }
+                    write(frame, n);
+                    // Some fills fail and are given back
+                    if (n % 7 == 0) {
+                        ring.abort();
+                    } else {
+                        ring.publish();
+                    }
+                    if (n == 1) {
+                        try {
+                            firstReads.await();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                isWriting.set(false);
+            }
+        });
+
+        Thread[] readers = new Thread[NUM_READERS];
+        for (int r = 0; r < NUM_READERS; r++) {
+            final boolean isBest = r % 2 == 1;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int lastLatest = 0;
+                    boolean isFirstRead = true;
+                    while (isWriting.get() && error.get() == null) {
+                        FrameContainer frame = isBest ? ring.acquireBestFrame() : ring.acquireLatest();
+                        if (frame == null) {
+                            continue;
+                        }
+                        try {
+                            int n = check(frame);
+                            if (n <= 0 || n % 7 == 0) {
+                                error.compareAndSet(null, "Inconsistent frame " + n);
+                            }
+                            if (!isBest) {
+                                if (n < lastLatest) {
+                                    error.compareAndSet(null, "Latest frame went back from " + lastLatest + " to " + n);
+                                }
+                                lastLatest = n;
+                            }
+                            // Hold the frame for a while, so that the writer has to skip it
+                            Thread.yield();
+                            if (check(frame) != n) {
+                                error.compareAndSet(null, "Frame " + n + " overwritten while pinned");
+                            }
+                        } finally {
+                            ring.release(frame);
+                        }
+                        numRead.incrementAndGet();
+                        if (isFirstRead) {
+                            firstReads.countDown();
+                            isFirstRead = false;
+                        }
+                    }
+                    // Stopped by the error of another reader: don't leave the writer waiting
+                    if (isFirstRead) {
+                        firstReads.countDown();
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        start.countDown();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(error.get(), error.get());
+        assertTrue(numRead.get() >= NUM_READERS);
+
+        // Every slot was given back
+        for (int i = 0; i < CAPACITY; i++) {
+            assertNotNull(ring.acquireWriteSlot());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package my.application.sda.calibrator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingCalibratorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    // Model on the raw output of the depth model
+    private static final double RAW_SCALE = 0.05;
+    private static final double RAW_SHIFT = 0.1;
+
+    private DepthField depthField;
+    private StreamingCalibrator streamingCalibrator;
+
+    @Before
+    public void setUp() {
+        float[] output = new float[320 * 192];
+        Random random = new Random(1);
+        for (int i = 0; i < output.length; i++) {
+            output[i] = 5f + 30f * random.nextFloat();
+        }
+        depthField = new DepthField(320, 192, WIDTH, HEIGHT);
+        depthField.setNormalized(FloatBuffer.wrap(output));
+
+        Calibrator calibrator = new Calibrator(WIDTH, HEIGHT, 200, 0.08, 0.3);
+        calibrator.setParallelism(1, 7);
+        calibrator.setMinimalSample(0.1, 0.99, true);
+        streamingCalibrator = new StreamingCalibrator(calibrator, 0.1);
+    }
+
+    // Points following the raw model with a relative noise of 1%
+    private CalibrationSamples goodSamples(long seed) {
+        CalibrationSamples samples = new CalibrationSamples(500);
+        Random random = new Random(seed);
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(WIDTH);
+            int y = random.nextInt(HEIGHT);
+            double raw = depthField.getRawMinimum() + depthField.getRawRange() * depthField.sample(x, y);
+            samples.add(x, y, (float) ((RAW_SCALE * raw + RAW_SHIFT) * (1 + 0.01 * random.nextGaussian())));
+        }
+        return samples;
+    }
+
+    // Points at a single pixel that disagree with the model: no line can be fitted through them
+    private static CalibrationSamples degenerateSamples() {
+        CalibrationSamples samples = new CalibrationSamples(100);
+        for (int i = 0; i < 100; i++) {
+            samples.add(10, 10, 20f + i);
+        }
+        return samples;
+    }
+
+    private void assertRawModel() {
+        assertEquals(RAW_SCALE * depthField.getRawRange(), streamingCalibrator.getScaleFactor(), 0.02);
+        assertEquals(RAW_SCALE * depthField.getRawMinimum() + RAW_SHIFT, streamingCalibrator.getShiftFactor(), 0.02);
+    }
+
+    @Test
+    public void consecutiveFramesKeepTheModel() {
+        for (int frame = 0; frame < 5; frame++) {
+            assertTrue(streamingCalibrator.calibrate(depthField, goodSamples(frame)));
+            assertRawModel();
+        }
+    }
+
+    @Test
+    public void noEstimateWithoutModel() {
+        assertFalse(streamingCalibrator.calibrate(depthField, degenerateSamples()));
+        assertFalse(streamingCalibrator.calibrate(depthField, new CalibrationSamples(0)));
+    }
+
+    @Test
+    public void failedRansacKeepsTheLastEstimate() {
+        assertTrue(streamingCalibrator.calibrate(depthField, goodSamples(1)));
+
+        // The frame drifts and its RANSAC fails: the last estimate is still reported
+        assertTrue(streamingCalibrator.calibrate(depthField, degenerateSamples()));
+        assertRawModel();
+
+        // The sums weren't seeded again from the factors of the failed calibration
+        assertTrue(streamingCalibrator.calibrate(depthField, goodSamples(2)));
+        assertRawModel();
+    }
+
+    @Test
+    public void resetForgetsTheEstimate() {
+        assertTrue(streamingCalibrator.calibrate(depthField, goodSamples(1)));
+        streamingCalibrator.reset();
+        assertFalse(streamingCalibrator.calibrate(depthField, degenerateSamples()));
+    }
+}
@@ -0,0 +1,66 @@
+package my.application.sda.helpers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ImageUtilTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    // NV21 image: Y plane followed by the interleaved V and U samples, like the ARCore camera images
+    private static byte[] randomNV21(int width, int height, long seed) {
+        byte[] nv21 = new byte[width * height + width * height / 2];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+
+    @Test
+    public void semiPlanarPlanesMatchNV21() {
+        byte[] nv21 = randomNV21(WIDTH, HEIGHT, 1);
+        int[] expected = new int[WIDTH * HEIGHT];
+        ImageUtil.convertYUV420SPToARGB8888(nv21, WIDTH, HEIGHT, expected);
+
+        // Planes of an Image: U and V share the buffer of the chroma, with pixel stride 2
+        int ySize = WIDTH * HEIGHT;
+        ByteBuffer yPlane = ByteBuffer.wrap(nv21, 0, ySize).slice();
+        ByteBuffer vPlane = ByteBuffer.wrap(nv21, ySize, nv21.length - ySize).slice();
+        ByteBuffer uPlane = ByteBuffer.wrap(nv21, ySize + 1, nv21.length - ySize - 1).slice();
+
+        int[] actual = new int[WIDTH * HEIGHT];
+        ImageUtil.convertYUV420ToARGB8888(yPlane, uPlane, vPlane, WIDTH, HEIGHT, WIDTH, WIDTH, 2, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void paddedPlanesMatchArrays() {
+        int yRowStride = WIDTH + 32;
+        int uvRowStride = WIDTH / 2 + 16;
+        Random random = new Random(2);
+        byte[] y = new byte[yRowStride * HEIGHT];
+        byte[] u = new byte[uvRowStride * HEIGHT / 2];
+        byte[] v = new byte[uvRowStride * HEIGHT / 2];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+
+        int[] expected = new int[WIDTH * HEIGHT];
+        ImageUtil.convertYUV420ToARGB8888(y, u, v, WIDTH, HEIGHT, yRowStride, uvRowStride, 1, expected);
+
+        // Direct buffers, like the planes of the camera
+        int[] actual = new int[WIDTH * HEIGHT];
+        ImageUtil.convertYUV420ToARGB8888(toDirect(y), toDirect(u), toDirect(v), WIDTH, HEIGHT, yRowStride, uvRowStride, 1, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static ByteBuffer toDirect(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+}